@@ -0,0 +1,363 @@
+package Benchmark;
+
+import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+// Mesure de bout en bout : démarre un ServeurPrincipal et N ServeurSecondaire sur la
+// boucle locale, dans un répertoire temporaire avec son propre config.properties, puis
+// mesure PUT, GET, LS et RM pour plusieurs tailles de fichier (débit et percentiles de
+// latence). Les serveurs gardent leur configuration dans des champs statiques, ils sont
+// donc lancés dans des JVM filles avec le même classpath que ce programme.
+//
+// Utilisation (depuis la racine du dépôt, après compilation) :
+//   java Benchmark.ClusterBenchmark [--secondaries 3] [--sizes 1K,64K,1M,16M,256M] [--repeat 20]
+//                                   [--buffer 1024] [--keep]
+// Les tailles acceptent les suffixes K, M et G (par exemple 1K,1M,1G,10G). Le GET du
+// serveur principal assemble le fichier en mémoire : au-delà de 2 Go il échoue et les
+// erreurs sont comptées dans le rapport.
+public class ClusterBenchmark
+{
+    private static final String[] OPERATIONS = { "PUT", "GET", "LS", "RM" };
+
+    private static String principalAddress = "127.0.0.1";
+    private static int principalPort;
+
+    public static void main(String[] args) throws Exception
+    {
+        int secondaries = 3;
+        List<Long> sizes = new ArrayList<>(Arrays.asList(parseSize("1K"), parseSize("64K"), parseSize("1M"), parseSize("16M"), parseSize("256M")));
+        int repeat = 20;
+        int bufferSize = 1024;
+        boolean keep = false;
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--secondaries": secondaries = Integer.parseInt(args[++i]); break;
+                case "--sizes":
+                    sizes.clear();
+                    for (String size : args[++i].split(",")) {
+                        sizes.add(parseSize(size));
+                    }
+                    break;
+                case "--repeat": repeat = Integer.parseInt(args[++i]); break;
+                case "--buffer": bufferSize = Integer.parseInt(args[++i]); break;
+                case "--keep": keep = true; break;
+                default:
+                    System.err.println("Option inconnue : " + args[i]);
+                    System.exit(1);
+            }
+        }
+
+        Path workDirectory = Files.createTempDirectory("bench-cluster");
+        List<Process> processes = new ArrayList<>();
+        try {
+            startCluster(workDirectory, secondaries, bufferSize, processes);
+
+            System.out.printf("%d serveurs secondaires, tampon de %d octets, répertoire %s%n", secondaries, bufferSize, workDirectory);
+            System.out.printf("%-4s %10s %6s %10s %10s %10s %10s %12s %7s%n",
+                              "op", "taille", "n", "p50 ms", "p90 ms", "p99 ms", "max ms", "débit Mo/s", "erreurs");
+            for (long size : sizes) {
+                runSize(workDirectory, size, repetitionsFor(size, repeat));
+            }
+        } finally {
+            for (Process process : processes) {
+                process.destroy();
+            }
+            for (Process process : processes) {
+                process.waitFor(5, TimeUnit.SECONDS);
+            }
+            if (!keep) {
+                deleteRecursively(workDirectory.toFile());
+            }
+        }
+    }
+
+    // Moins de répétitions pour les gros fichiers, au moins 3
+    private static int repetitionsFor(long size, int repeat)
+    {
+        long budget = 2L * 1024 * 1024 * 1024; // Environ 2 Go transférés par taille
+        return (int) Math.max(3, Math.min(repeat, budget / Math.max(1, size)));
+    }
+
+    private static void startCluster(Path workDirectory, int secondaries, int bufferSize, List<Process> processes) throws Exception
+    {
+        principalPort = freePortRange(1);
+        int secondaryBase = freePortRange(secondaries + 1); // Le serveur i écoute sur base + i
+
+        Properties prop = new Properties();
+        prop.setProperty("server.principal.address", principalAddress);
+        prop.setProperty("server.principal.port.base", Integer.toString(principalPort));
+        prop.setProperty("server.principal.directory", "ServeurPrincipal");
+        prop.setProperty("server.secondary.count", Integer.toString(secondaries));
+        prop.setProperty("server.transfer.buffer.size", Integer.toString(bufferSize));
+        prop.setProperty("server.repair.interval", "3600000");
+        Files.createDirectories(workDirectory.resolve("ServeurPrincipal"));
+        for (int i = 1; i <= secondaries; i++) {
+            prop.setProperty("server.secondary" + i + ".address", principalAddress);
+            prop.setProperty("server.secondary" + i + ".port.base", Integer.toString(secondaryBase));
+            prop.setProperty("server.secondary" + i + ".directory", "ServeurSecondaire" + i);
+            Files.createDirectories(workDirectory.resolve("ServeurSecondaire" + i));
+        }
+        try (OutputStream output = new FileOutputStream(workDirectory.resolve("config.properties").toFile())) {
+            prop.store(output, "Configuration générée par ClusterBenchmark");
+        }
+
+        for (int i = 1; i <= secondaries; i++) {
+            processes.add(startJvm(workDirectory, "secondaire" + i + ".log", "ServeurSecondaire1.ServeurSecondaire", Integer.toString(i)));
+        }
+        for (int i = 1; i <= secondaries; i++) {
+            waitForPort(secondaryBase + i);
+        }
+        processes.add(startJvm(workDirectory, "principal.log", "ServeurPrincipal.ServeurPrincipal"));
+        waitForPort(principalPort);
+    }
+
+    private static Process startJvm(Path workDirectory, String logName, String mainClass, String... args) throws IOException
+    {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-cp");
+        // Chemins absolus : les JVM filles tournent dans le répertoire temporaire
+        StringJoiner classPath = new StringJoiner(File.pathSeparator);
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            classPath.add(new File(entry).getAbsolutePath());
+        }
+        command.add(classPath.toString());
+        command.add(mainClass);
+        command.addAll(Arrays.asList(args));
+        return new ProcessBuilder(command)
+            .directory(workDirectory.toFile())
+            .redirectErrorStream(true)
+            .redirectOutput(workDirectory.resolve(logName).toFile())
+            .start();
+    }
+
+    private static int freePortRange(int count) throws IOException
+    {
+        Random random = new Random();
+        for (int attempt = 0; attempt < 100; attempt++) {
+            int base = 20000 + random.nextInt(30000);
+            boolean free = true;
+            for (int port = base; port < base + count && free; port++) {
+                try {
+                    new ServerSocket(port).close();
+                } catch (IOException e) {
+                    free = false;
+                }
+            }
+            if (free) {
+                return base;
+            }
+        }
+        throw new IOException("aucune plage de " + count + " ports libres");
+    }
+
+    private static void waitForPort(int port) throws Exception
+    {
+        long deadline = System.currentTimeMillis() + 15000;
+        while (System.currentTimeMillis() < deadline) {
+            try {
+                new Socket(principalAddress, port).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IOException("le port " + port + " n'a pas été ouvert à temps");
+    }
+
+    private static void runSize(Path workDirectory, long size, int repetitions) throws IOException
+    {
+        File source = workDirectory.resolve("source_" + size + ".bin").toFile();
+        writeRandomFile(source, size);
+
+        Map<String, List<Long>> latencies = new LinkedHashMap<>();
+        Map<String, Integer> errors = new HashMap<>();
+        for (String operation : OPERATIONS) {
+            latencies.put(operation, new ArrayList<>());
+            errors.put(operation, 0);
+        }
+
+        for (int r = 0; r < repetitions; r++) {
+            String name = "bench_" + size + "_" + r;
+            measure("PUT", latencies, errors, () -> put(source, name));
+        }
+        for (int r = 0; r < repetitions; r++) {
+            String name = "bench_" + size + "_" + r;
+            measure("GET", latencies, errors, () -> get(name, size));
+        }
+        for (int r = 0; r < repetitions; r++) {
+            measure("LS", latencies, errors, ClusterBenchmark::ls);
+        }
+        for (int r = 0; r < repetitions; r++) {
+            String name = "bench_" + size + "_" + r;
+            measure("RM", latencies, errors, () -> rm(name));
+        }
+        source.delete();
+
+        for (String operation : OPERATIONS) {
+            report(operation, size, latencies.get(operation), errors.get(operation),
+                   operation.equals("PUT") || operation.equals("GET"));
+        }
+    }
+
+    private interface Operation
+    {
+        void run() throws IOException;
+    }
+
+    private static void measure(String operation, Map<String, List<Long>> latencies, Map<String, Integer> errors, Operation body)
+    {
+        long start = System.nanoTime();
+        try {
+            body.run();
+            latencies.get(operation).add(System.nanoTime() - start);
+        } catch (IOException e) {
+            errors.merge(operation, 1, Integer::sum);
+        }
+    }
+
+    private static void report(String operation, long size, List<Long> samples, int errorCount, boolean withThroughput)
+    {
+        if (samples.isEmpty()) {
+            System.out.printf("%-4s %10s %6d %10s %10s %10s %10s %12s %7d%n", operation, formatSize(size), 0, "-", "-", "-", "-", "-", errorCount);
+            return;
+        }
+        long[] sorted = samples.stream().mapToLong(Long::longValue).sorted().toArray();
+        long total = 0;
+        for (long sample : sorted) {
+            total += sample;
+        }
+        String throughput = withThroughput
+            ? String.format("%.1f", (double) size * sorted.length / (1024.0 * 1024.0) / (total / 1_000_000_000.0))
+            : "-";
+        System.out.printf("%-4s %10s %6d %10.2f %10.2f %10.2f %10.2f %12s %7d%n", operation, formatSize(size), sorted.length,
+                          percentile(sorted, 0.50), percentile(sorted, 0.90), percentile(sorted, 0.99),
+                          sorted[sorted.length - 1] / 1_000_000.0, throughput, errorCount);
+    }
+
+    private static double percentile(long[] sorted, double p)
+    {
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))] / 1_000_000.0;
+    }
+
+    // Protocole du serveur principal, tel qu'utilisé par Client
+
+    private static void put(File source, String name) throws IOException
+    {
+        try (Socket socket = new Socket(principalAddress, principalPort);
+             DataOutputStream output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+             DataInputStream input = new DataInputStream(socket.getInputStream());
+             FileInputStream file = new FileInputStream(source)) {
+            output.writeUTF("PUT");
+            output.writeUTF(name);
+            output.writeLong(source.length());
+            file.transferTo(output);
+            output.flush();
+            socket.shutdownOutput(); // Le serveur lit jusqu'à la fin du flux
+            input.readUTF();         // Réponse envoyée une fois le fichier distribué
+        }
+    }
+
+    private static void get(String name, long expectedSize) throws IOException
+    {
+        try (Socket socket = new Socket(principalAddress, principalPort);
+             DataOutputStream output = new DataOutputStream(socket.getOutputStream());
+             DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+            output.writeUTF("GET");
+            output.writeUTF(name);
+            output.flush();
+
+            String header = input.readUTF(); // Nom du fichier, ou message d'erreur
+            if (header.startsWith("Erreur")) {
+                throw new IOException(header);
+            }
+            long size = input.readLong();
+            long remaining = size;
+            byte[] buffer = new byte[256 * 1024];
+            while (remaining > 0) {
+                int bytesRead = input.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (bytesRead == -1) break;
+                remaining -= bytesRead;
+            }
+            if (size != expectedSize || remaining != 0) {
+                throw new IOException("réponse incomplète pour " + name);
+            }
+        }
+    }
+
+    private static void ls() throws IOException
+    {
+        try (Socket socket = new Socket(principalAddress, principalPort);
+             DataOutputStream output = new DataOutputStream(socket.getOutputStream());
+             DataInputStream input = new DataInputStream(socket.getInputStream())) {
+            output.writeUTF("LS");
+            output.flush();
+            int count = input.readInt();
+            for (int i = 0; i < count; i++) {
+                input.readUTF();
+            }
+        }
+    }
+
+    private static void rm(String name) throws IOException
+    {
+        try (Socket socket = new Socket(principalAddress, principalPort);
+             DataOutputStream output = new DataOutputStream(socket.getOutputStream());
+             DataInputStream input = new DataInputStream(socket.getInputStream())) {
+            output.writeUTF("RM");
+            output.writeUTF(name);
+            output.flush();
+            input.transferTo(OutputStream.nullOutputStream()); // Plusieurs lignes jusqu'à la fermeture
+        }
+    }
+
+    // Outils
+
+    private static long parseSize(String text)
+    {
+        String value = text.trim().toUpperCase();
+        long unit = 1;
+        if (value.endsWith("K")) unit = 1024;
+        else if (value.endsWith("M")) unit = 1024 * 1024;
+        else if (value.endsWith("G")) unit = 1024L * 1024 * 1024;
+        if (unit > 1) {
+            value = value.substring(0, value.length() - 1);
+        }
+        return Long.parseLong(value) * unit;
+    }
+
+    private static String formatSize(long size)
+    {
+        if (size >= 1024L * 1024 * 1024 && size % (1024L * 1024 * 1024) == 0) return size / (1024L * 1024 * 1024) + "G";
+        if (size >= 1024 * 1024 && size % (1024 * 1024) == 0) return size / (1024 * 1024) + "M";
+        if (size >= 1024 && size % 1024 == 0) return size / 1024 + "K";
+        return Long.toString(size);
+    }
+
+    private static void writeRandomFile(File file, long size) throws IOException
+    {
+        byte[] block = new byte[1024 * 1024];
+        new Random(size).nextBytes(block);
+        try (FileOutputStream output = new FileOutputStream(file)) {
+            for (long written = 0; written < size; written += block.length) {
+                output.write(block, 0, (int) Math.min(block.length, size - written));
+            }
+        }
+    }
+
+    private static void deleteRecursively(File file)
+    {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
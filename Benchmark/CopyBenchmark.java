@@ -0,0 +1,215 @@
+package Benchmark;
+
+import Stockage.Transfers;
+
+import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.CRC32;
+
+// Mesure des boucles de copie des serveurs selon la taille du tampon
+// (server.transfer.buffer.size dans config.properties) :
+//  - envoi d'une partie par le serveur principal (divideAndSendFile -> sendFileToSecondaryServer),
+//    fichier -> socket avec CRC32 ;
+//  - ServeurSecondaire.sendFilePart, fichier -> socket ;
+//  - ServeurSecondaire.receiveFile / receivePart, socket -> fichier ;
+//  - réception d'un PUT par le serveur principal (handlePut), socket -> fichier.
+// Les sockets sont de vraies connexions TCP sur la boucle locale, vidées ou alimentées
+// par un thread séparé.
+//
+// Utilisation (depuis la racine du dépôt, après compilation) :
+//   java Benchmark.CopyBenchmark [--size-mb 256] [--buffers 1024,8192,65536,262144] [--warmup 3] [--iterations 10]
+public class CopyBenchmark
+{
+    private interface CopyLoop
+    {
+        long copy(File source, File target, byte[] buffer, long size) throws IOException;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        long sizeMb = 256;
+        int[] bufferSizes = { 1024, 8 * 1024, 64 * 1024, 256 * 1024, 1024 * 1024 };
+        int warmup = 3;
+        int iterations = 10;
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--size-mb": sizeMb = Long.parseLong(args[++i]); break;
+                case "--buffers": bufferSizes = Arrays.stream(args[++i].split(",")).mapToInt(Integer::parseInt).toArray(); break;
+                case "--warmup": warmup = Integer.parseInt(args[++i]); break;
+                case "--iterations": iterations = Integer.parseInt(args[++i]); break;
+                default:
+                    System.err.println("Option inconnue : " + args[i]);
+                    System.exit(1);
+            }
+        }
+
+        Path workDirectory = Files.createTempDirectory("bench-copie");
+        File source = workDirectory.resolve("source.bin").toFile();
+        File target = workDirectory.resolve("target.bin").toFile();
+        long size = sizeMb * 1024 * 1024;
+        writeRandomFile(source, size);
+
+        Map<String, CopyLoop> loops = new LinkedHashMap<>();
+        loops.put("principal.sendFileToSecondaryServer", CopyBenchmark::primarySendPart);
+        loops.put("secondaire.sendFilePart", CopyBenchmark::secondarySendFilePart);
+        loops.put("secondaire.receiveFile", CopyBenchmark::secondaryReceiveFile);
+        loops.put("principal.handlePut", CopyBenchmark::primaryReceivePut);
+
+        System.out.printf("Données : %d Mo, %d itérations de chauffe, %d itérations mesurées%n", sizeMb, warmup, iterations);
+        System.out.printf("%-38s %10s %12s %12s %12s%n", "boucle", "tampon", "médiane Mo/s", "min Mo/s", "max Mo/s");
+        try {
+            for (Map.Entry<String, CopyLoop> loop : loops.entrySet()) {
+                for (int bufferSize : bufferSizes) {
+                    byte[] buffer = new byte[bufferSize];
+                    for (int i = 0; i < warmup; i++) {
+                        loop.getValue().copy(source, target, buffer, size);
+                    }
+
+                    double[] rates = new double[iterations];
+                    for (int i = 0; i < iterations; i++) {
+                        long start = System.nanoTime();
+                        long copied = loop.getValue().copy(source, target, buffer, size);
+                        long elapsed = System.nanoTime() - start;
+                        if (copied != size) {
+                            throw new IOException(loop.getKey() + " : " + copied + " octets copiés au lieu de " + size);
+                        }
+                        rates[i] = size / (1024.0 * 1024.0) / (elapsed / 1_000_000_000.0);
+                    }
+                    Arrays.sort(rates);
+                    System.out.printf("%-38s %10d %12.1f %12.1f %12.1f%n", loop.getKey(), bufferSize,
+                                      rates[rates.length / 2], rates[0], rates[rates.length - 1]);
+                }
+            }
+        } finally {
+            source.delete();
+            target.delete();
+            Files.deleteIfExists(workDirectory);
+        }
+    }
+
+    private static long primarySendPart(File source, File target, byte[] buffer, long size) throws IOException
+    {
+        try (FileInputStream input = new FileInputStream(source);
+             DrainingSocket sink = new DrainingSocket()) {
+            // Même empilement que sendFileToSecondaryServer
+            OutputStream output = new DataOutputStream(new BufferedOutputStream(sink.output()));
+            long copied = Transfers.copyBytes(input, output, size, buffer, new CRC32());
+            output.flush();
+            return copied;
+        }
+    }
+
+    private static long secondarySendFilePart(File source, File target, byte[] buffer, long size) throws IOException
+    {
+        try (FileInputStream input = new FileInputStream(source);
+             DrainingSocket sink = new DrainingSocket()) {
+            return Transfers.copyBytes(input, new DataOutputStream(sink.output()), -1, buffer, null);
+        }
+    }
+
+    private static long secondaryReceiveFile(File source, File target, byte[] buffer, long size) throws IOException
+    {
+        try (FeedingSocket feed = new FeedingSocket(source);
+             FileOutputStream output = new FileOutputStream(target)) {
+            return Transfers.copyBytes(new DataInputStream(feed.input()), output, size, buffer, null);
+        }
+    }
+
+    private static long primaryReceivePut(File source, File target, byte[] buffer, long size) throws IOException
+    {
+        try (FeedingSocket feed = new FeedingSocket(source);
+             FileOutputStream output = new FileOutputStream(target)) {
+            return Transfers.copyBytes(new DataInputStream(feed.input()), output, -1, buffer, null);
+        }
+    }
+
+    private static void writeRandomFile(File file, long size) throws IOException
+    {
+        byte[] block = new byte[1024 * 1024];
+        new Random(42).nextBytes(block);
+        try (FileOutputStream output = new FileOutputStream(file)) {
+            for (long written = 0; written < size; written += block.length) {
+                output.write(block, 0, (int) Math.min(block.length, size - written));
+            }
+        }
+    }
+
+    // Connexion locale dont l'autre extrémité lit et jette tout ce qui arrive
+    private static class DrainingSocket implements Closeable
+    {
+        private final ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        private final Socket socket;
+        private final Thread drain;
+
+        DrainingSocket() throws IOException
+        {
+            socket = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+            Socket peer = server.accept();
+            drain = new Thread(() -> {
+                try (InputStream input = peer.getInputStream()) {
+                    byte[] buffer = new byte[256 * 1024];
+                    while (input.read(buffer) != -1) {
+                        // Rien : seules les écritures côté serveur sont mesurées
+                    }
+                } catch (IOException e) {
+                    // Connexion fermée
+                }
+            });
+            drain.start();
+        }
+
+        OutputStream output() throws IOException
+        {
+            return socket.getOutputStream();
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            socket.shutdownOutput();
+            try {
+                drain.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            socket.close();
+            server.close();
+        }
+    }
+
+    // Connexion locale dont l'autre extrémité envoie le contenu d'un fichier puis ferme
+    private static class FeedingSocket implements Closeable
+    {
+        private final ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        private final Socket socket;
+
+        FeedingSocket(File source) throws IOException
+        {
+            socket = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+            Socket peer = server.accept();
+            new Thread(() -> {
+                try (OutputStream output = peer.getOutputStream();
+                     FileInputStream input = new FileInputStream(source)) {
+                    input.transferTo(output);
+                } catch (IOException e) {
+                    // Connexion fermée
+                }
+            }).start();
+        }
+
+        InputStream input() throws IOException
+        {
+            return socket.getInputStream();
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            socket.close();
+            server.close();
+        }
+    }
+}
@@ -1,17 +1,28 @@
 package Client1;
 
+import ServeurPrincipal.ShardMap;
+
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Properties;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.*;
 
 public class Client 
 {
 
     private static int principalServerId;
-    private static int principalServerPort;
-    private static String principalServerAddress;
     private static String principalServerDirectory;
+    // Serveurs principaux se partageant les fichiers ; chaque commande va à celui du fichier
+    static ShardMap principalServers;
     private static int secondaryServerCount;
     private static int[] secondaryServerIds;
     private static int[] secondaryServerPorts;
@@ -29,7 +40,7 @@ public class Client
     public static void main(String[] args) throws IOException 
     {
         if (args.length == 0) {
-            System.err.println("Veuillez fournir un ID de client comme argument.");
+            System.err.println("Veuillez fournir un ID de client comme argument (suivi de LOAD ou REPLAY pour générer de la charge).");
             System.exit(1);
         }
 
@@ -41,13 +52,26 @@ public class Client
          System.out.println("Client démarré : " + clientName);
          System.out.println("Connecté à " + clientAddress + ":" + clientPort);
 
+        // Mode sans saisie : génération de charge (LOAD) ou rejeu d'une trace (REPLAY)
+        if (args.length > 1) {
+            try {
+                LoadGenerator.run(Arrays.copyOfRange(args, 1, args.length));
+            } catch (IllegalArgumentException e) {
+                System.err.println("Paramètre invalide : " + e.getMessage());
+                System.exit(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return;
+        }
+
         // Boucle principale pour permettre à l'utilisateur de choisir une action
         
         try (Scanner scanner = new Scanner(System.in)) 
         {
             while (true) 
             {
-                System.out.println("Entrez une commande (PUT/GET/LS/RM/EXIT) :");
+                System.out.println("Entrez une commande (PUT/PPUT/GET/PGET/LS/RM/PLACEMENT/HEALTH/STATS/RELOAD/REBALANCE/EXIT) :");
                 String input = scanner.nextLine();
                 String[] commandParts = input.split(" ", 2);
                 String command = commandParts[0].toUpperCase();
@@ -60,6 +84,13 @@ public class Client
                         }
                         sendFileToServer(commandParts[1]);
                         break;
+                    case "PPUT":
+                        if (commandParts.length < 2) {
+                            System.out.println("Veuillez spécifier le fichier à envoyer.");
+                            continue;
+                        }
+                        sendFileToSecondaries(commandParts[1]);
+                        break;
                     case "GET":
                         if (commandParts.length < 2) {
                             System.out.println("Veuillez spécifier le fichier à récupérer.");
@@ -67,6 +98,13 @@ public class Client
                         }
                         receiveFileFromServer(commandParts[1]);
                         break;
+                    case "PGET":
+                        if (commandParts.length < 2) {
+                            System.out.println("Veuillez spécifier le fichier à récupérer.");
+                            continue;
+                        }
+                        receiveFileFromSecondaries(commandParts[1]);
+                        break;
                     case "LS":
                         listFilesOnServer();
                         break;
@@ -77,11 +115,24 @@ public class Client
                         }
                         deleteFileFromServer(commandParts[1]);
                         break;
+                    case "PLACEMENT":
+                        showPlacementDecisions(commandParts.length < 2 ? "" : commandParts[1]);
+                        break;
+                    case "HEALTH":
+                        showSecondaryHealth();
+                        break;
+                    case "STATS":
+                        showServerStats(commandParts.length < 2 ? "" : commandParts[1]);
+                        break;
+                    case "RELOAD":
+                    case "REBALANCE":
+                        runAdminCommand(command);
+                        break;
                     case "EXIT":
                         System.out.println("Fermeture du client.");
                         return;
                     default:
-                        System.out.println("Commande inconnue. Essayez PUT, GET, LS, RM ou EXIT.");
+                        System.out.println("Commande inconnue. Essayez PUT, PPUT, GET, PGET, LS, RM, PLACEMENT, HEALTH, STATS, RELOAD, REBALANCE ou EXIT.");
                 }
             }
         }
@@ -103,8 +154,7 @@ public class Client
             clientDirectory = prop.getProperty("client" + clientID + ".directory", "Client");
 
             // Configuration du serveur principal
-            principalServerAddress = prop.getProperty("server.principal.address", "localhost");
-            principalServerPort = Integer.parseInt(prop.getProperty("server.principal.port", "12345"));
+            principalServers = ShardMap.load(prop);
 
             // Serveurs secondaires
             secondaryServerCount = Integer.parseInt(prop.getProperty("server.secondary.count", "0"));
@@ -114,17 +164,54 @@ public class Client
                 secondaryServerAddresses[i] = prop.getProperty("server.secondary" + (i + 1) + ".address", "localhost");
                 secondaryServerPorts[i] = Integer.parseInt(prop.getProperty("server.secondary" + (i + 1) + ".port", "0"));
             }
-        } catch (IOException ex) {
+        } catch (IOException | IllegalArgumentException ex) {
             System.err.println("Erreur lors du chargement de la configuration : " + ex.getMessage());
             System.exit(1);
         }
     }
 
+    // Connexion au serveur principal numéro id, tel que décrit par la ShardMap
+    static Socket connectToPrincipal(int id) throws IOException
+    {
+        ShardMap.Primary primary = principalServers.get(id);
+        Socket socket = new Socket();
+        try {
+            // Pas de délai de lecture : la réponse à un PUT arrive après la répartition du fichier
+            socket.connect(new InetSocketAddress(primary.address, primary.port), clientTimeout);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return socket;
+    }
+
+    // Connexion directe au serveur secondaire d'une partie, avec clientTimeout pour la
+    // connexion et pour chaque lecture : un serveur bloqué fait échouer la partie au lieu
+    // de suspendre le transfert
+    private static Socket connectToSecondary(PartLocation part) throws IOException
+    {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(part.address, part.port), clientTimeout);
+            socket.setSoTimeout(clientTimeout);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return socket;
+    }
+
+    // Connexion au serveur principal qui possède ce fichier
+    static Socket connectToPrincipal(String fileName) throws IOException
+    {
+        return connectToPrincipal(principalServers.ownerOf(fileName));
+    }
+
     
 
     private static void sendFileToServer(String filePath) 
     {
-        try (Socket socket = new Socket(principalServerAddress, principalServerPort); // Connexion au serveur principal
+        try (Socket socket = connectToPrincipal(new File(filePath).getName()); // Connexion au serveur principal du fichier
              DataOutputStream dataOutputStream = new DataOutputStream(socket.getOutputStream())) {
 
             File file = new File(filePath);
@@ -156,7 +243,7 @@ public class Client
 
     private static void receiveFileFromServer(String fileName) 
     {
-        try (Socket socket = new Socket(principalServerAddress, principalServerPort); // Connexion au serveur principal
+        try (Socket socket = connectToPrincipal(fileName); // Connexion au serveur principal du fichier
              DataOutputStream dataOutputStream = new DataOutputStream(socket.getOutputStream());
              DataInputStream dataInputStream = new DataInputStream(socket.getInputStream())) {
 
@@ -191,42 +278,381 @@ public class Client
         }
     }
 
-    private static void listFilesOnServer() 
+    // Téléchargement direct (PGET) : le serveur principal renvoie seulement la répartition
+    // des parties, qui sont ensuite récupérées en parallèle auprès des serveurs secondaires
+    // et écrites à leur décalage dans le fichier de sortie.
+    private static void receiveFileFromSecondaries(String fileName)
     {
-        try (Socket socket = new Socket(principalServerAddress, principalServerPort); // Connexion au serveur principal
+        List<PartLocation> parts = new ArrayList<>();
+        long fileSize;
+
+        try (Socket socket = connectToPrincipal(fileName); // Connexion au serveur principal du fichier
              DataOutputStream dataOutputStream = new DataOutputStream(socket.getOutputStream());
              DataInputStream dataInputStream = new DataInputStream(socket.getInputStream())) {
-    
-            // Envoyer la commande LS
-            dataOutputStream.writeUTF("LS");
-            dataOutputStream.flush(); // S'assurer que la commande est envoyée immédiatement
-    
-            // Lire le nombre de fichiers
-            int fileCount = dataInputStream.readInt();
-            System.out.println("Nombre de fichiers sur le serveur : " + fileCount);
-    
-            if (fileCount == 0) {
-                System.out.println("Aucun fichier sur le serveur.");
+
+            // Demander la répartition des parties
+            dataOutputStream.writeUTF("LAYOUT");
+            dataOutputStream.writeUTF(fileName);
+            dataOutputStream.flush();
+
+            fileSize = readLayout(dataInputStream, parts);
+        } catch (IOException e) {
+            System.err.println("Erreur lors de la récupération de la répartition : " + e.getMessage());
+            return;
+        }
+
+        if (fileSize < 0 || parts.isEmpty()) {
+            System.out.println("Le fichier " + fileName + " n'existe pas sur le serveur.");
+            return;
+        }
+
+        File outputFile = new File(clientDirectory, "downloaded_" + fileName);
+        ExecutorService executor = Executors.newFixedThreadPool(parts.size());
+        try (FileChannel outputChannel = FileChannel.open(outputFile.toPath(), StandardOpenOption.CREATE,
+                                                          StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            List<Future<Long>> results = new ArrayList<>();
+            for (PartLocation part : parts) {
+                results.add(executor.submit(() -> fetchPart(part, outputChannel)));
+            }
+
+            long totalRead = 0;
+            for (int i = 0; i < results.size(); i++) {
+                try {
+                    totalRead += results.get(i).get();
+                } catch (ExecutionException e) {
+                    System.err.println("Erreur lors de la récupération de la partie " + parts.get(i).index + " : " + e.getCause().getMessage());
+                }
+            }
+
+            if (totalRead == fileSize) {
+                System.out.println("Fichier " + fileName + " téléchargé avec succès en tant que " + outputFile.getName());
+            } else {
+                System.err.println("Fichier " + fileName + " incomplet. Attendu : " + fileSize + " octets, Reçu : " + totalRead + " octets.");
+            }
+        } catch (IOException e) {
+            System.err.println("Erreur lors de l'écriture du fichier : " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    // Envoi direct (PPUT) : le serveur principal fournit le découpage et les serveurs cibles,
+    // chaque partie est lue à son décalage dans le fichier local et envoyée en parallèle
+    // au serveur secondaire, puis l'envoi est confirmé auprès du serveur principal (COMMIT).
+    private static void sendFileToSecondaries(String filePath)
+    {
+        File file = new File(filePath);
+        if (!file.exists()) {
+            System.out.println("Le fichier spécifié n'existe pas.");
+            return;
+        }
+
+        List<PartLocation> parts = new ArrayList<>();
+        try (Socket socket = connectToPrincipal(file.getName()); // Connexion au serveur principal du fichier
+             DataOutputStream dataOutputStream = new DataOutputStream(socket.getOutputStream());
+             DataInputStream dataInputStream = new DataInputStream(socket.getInputStream())) {
+
+            // Demander le plan de placement
+            dataOutputStream.writeUTF("PLAN");
+            dataOutputStream.writeUTF(file.getName());
+            dataOutputStream.writeLong(file.length());
+            dataOutputStream.flush();
+
+            if (readLayout(dataInputStream, parts) < 0) {
+                System.out.println("Aucun serveur secondaire disponible pour recevoir le fichier.");
                 return;
             }
-    
-            // Lire les noms des fichiers
-            System.out.println("Fichiers sur le serveur principal :");
-            for (int i = 0; i < fileCount; i++) 
-            {
-                String fileName = dataInputStream.readUTF(); // Lire chaque nom de fichier
-                System.out.println("- " + fileName);
+        } catch (IOException e) {
+            System.err.println("Erreur lors de la demande du plan de placement : " + e.getMessage());
+            return;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(parts.size());
+        boolean allSent = true;
+        try (FileChannel inputChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            List<Future<Long>> results = new ArrayList<>();
+            for (PartLocation part : parts) {
+                results.add(executor.submit(() -> pushPart(part, inputChannel)));
+            }
+
+            for (int i = 0; i < results.size(); i++) {
+                try {
+                    results.get(i).get();
+                } catch (ExecutionException e) {
+                    allSent = false;
+                    System.err.println("Erreur lors de l'envoi de la partie " + parts.get(i).index + " : " + e.getCause().getMessage());
+                }
             }
-    
         } catch (IOException e) {
-            System.err.println("Erreur lors de la liste des fichiers : " + e.getMessage());
+            System.err.println("Erreur lors de la lecture du fichier : " + e.getMessage());
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } finally {
+            executor.shutdownNow();
+        }
+
+        if (!allSent) {
+            System.err.println("Envoi de " + file.getName() + " abandonné.");
+            return;
+        }
+
+        try (Socket socket = connectToPrincipal(file.getName()); // Connexion au serveur principal du fichier
+             DataOutputStream dataOutputStream = new DataOutputStream(socket.getOutputStream());
+             DataInputStream dataInputStream = new DataInputStream(socket.getInputStream())) {
+
+            // Confirmer l'envoi
+            dataOutputStream.writeUTF("COMMIT");
+            dataOutputStream.writeUTF(file.getName());
+            dataOutputStream.flush();
+            System.out.println(dataInputStream.readUTF());
+        } catch (IOException e) {
+            System.err.println("Erreur lors de la confirmation de l'envoi : " + e.getMessage());
+        }
+    }
+
+    // Envoie une partie à son serveur secondaire par lectures positionnelles dans le fichier local
+    private static long pushPart(PartLocation part, FileChannel inputChannel) throws IOException
+    {
+        try (Socket socket = connectToSecondary(part);
+             DataOutputStream dataOutputStream = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+             DataInputStream dataInputStream = new DataInputStream(socket.getInputStream())) {
+
+            dataOutputStream.writeUTF("PUTPART");
+            dataOutputStream.writeUTF(part.partName);
+            dataOutputStream.writeLong(part.length);
+
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            long totalSent = 0;
+            while (totalSent < part.length) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), part.length - totalSent));
+                int bytesRead = inputChannel.read(buffer, part.offset + totalSent);
+                if (bytesRead == -1) {
+                    throw new IOException("fin de fichier inattendue après " + totalSent + " octets sur " + part.length);
+                }
+                dataOutputStream.write(buffer.array(), 0, bytesRead);
+                totalSent += bytesRead;
+            }
+            dataOutputStream.flush();
+
+            String response = dataInputStream.readUTF();
+            if (!"OK".equals(response)) {
+                throw new IOException(response);
+            }
+            return totalSent;
+        }
+    }
+
+    // Lit une répartition au format LAYOUT/PLAN et retourne la taille du fichier (-1 si inconnu)
+    private static long readLayout(DataInputStream dataInputStream, List<PartLocation> parts) throws IOException
+    {
+        long fileSize = dataInputStream.readLong();
+        int partCount = dataInputStream.readInt();
+        for (int i = 0; i < partCount; i++) {
+            parts.add(new PartLocation(dataInputStream.readInt(), dataInputStream.readUTF(), dataInputStream.readInt(),
+                                       dataInputStream.readUTF(), dataInputStream.readLong(), dataInputStream.readLong()));
+        }
+        return fileSize;
+    }
+
+    // Récupère une partie auprès de son serveur secondaire et l'écrit à son décalage
+    private static long fetchPart(PartLocation part, FileChannel outputChannel) throws IOException
+    {
+        if (part.port < 0) {
+            throw new IOException("serveur secondaire de " + part.partName + " inconnu du serveur principal");
+        }
+        try (Socket socket = connectToSecondary(part);
+             DataOutputStream dataOutputStream = new DataOutputStream(socket.getOutputStream());
+             DataInputStream dataInputStream = new DataInputStream(socket.getInputStream())) {
+
+            dataOutputStream.writeUTF("GET");
+            dataOutputStream.writeUTF(part.partName);
+            dataOutputStream.flush();
+
+            long partSize = dataInputStream.readLong();
+            if (partSize != part.length) {
+                throw new IOException("taille inattendue pour " + part.partName + " (" + partSize + " au lieu de " + part.length + ")");
+            }
+
+            byte[] buffer = new byte[64 * 1024];
+            long totalRead = 0;
+            while (totalRead < partSize) {
+                int bytesRead = dataInputStream.read(buffer, 0, (int) Math.min(buffer.length, partSize - totalRead));
+                if (bytesRead == -1) {
+                    throw new IOException("connexion fermée après " + totalRead + " octets sur " + partSize);
+                }
+                ByteBuffer data = ByteBuffer.wrap(buffer, 0, bytesRead);
+                long position = part.offset + totalRead;
+                while (data.hasRemaining()) {
+                    position += outputChannel.write(data, position);
+                }
+                totalRead += bytesRead;
+            }
+            return totalRead;
+        }
+    }
+
+    // Emplacement d'une partie tel que renvoyé par la commande LAYOUT
+    private static class PartLocation
+    {
+        final int index;
+        final String address;
+        final int port;
+        final String partName;
+        final long offset;
+        final long length;
+
+        PartLocation(int index, String address, int port, String partName, long offset, long length)
+        {
+            this.index = index;
+            this.address = address;
+            this.port = port;
+            this.partName = partName;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private static void listFilesOnServer() 
+    {
+        // Chaque serveur principal ne connaît que les fichiers de son domaine
+        Set<String> fileNames = new TreeSet<>();
+        for (int id = 1; id <= principalServers.size(); id++)
+        {
+            try (Socket socket = connectToPrincipal(id);
+                 DataOutputStream dataOutputStream = new DataOutputStream(socket.getOutputStream());
+                 DataInputStream dataInputStream = new DataInputStream(socket.getInputStream())) {
+        
+                // Envoyer la commande LS
+                dataOutputStream.writeUTF("LS");
+                dataOutputStream.flush(); // S'assurer que la commande est envoyée immédiatement
+        
+                // Lire le nombre de fichiers puis leurs noms
+                int fileCount = dataInputStream.readInt();
+                for (int i = 0; i < fileCount; i++) 
+                {
+                    fileNames.add(dataInputStream.readUTF()); // Lire chaque nom de fichier
+                }
+            } catch (IOException e) {
+                System.err.println("Erreur lors de la liste des fichiers du serveur principal " + id + " : " + e.getMessage());
+            }
+        }
+
+        System.out.println("Nombre de fichiers sur le serveur : " + fileNames.size());
+        if (fileNames.isEmpty()) {
+            System.out.println("Aucun fichier sur le serveur.");
+            return;
+        }
+
+        System.out.println("Fichiers sur le serveur principal :");
+        for (String fileName : fileNames) {
+            System.out.println("- " + fileName);
+        }
+    }
+
+    // Affiche les dernières décisions de placement du serveur principal du fichier, ou de
+    // tous les serveurs principaux si aucun fichier n'est donné
+    private static void showPlacementDecisions(String fileName)
+    {
+        int decisionCount = 0;
+        for (int id = 1; id <= principalServers.size(); id++)
+        {
+            if (!fileName.isEmpty() && id != principalServers.ownerOf(fileName)) {
+                continue;
+            }
+            try (Socket socket = connectToPrincipal(id);
+                 DataOutputStream dataOutputStream = new DataOutputStream(socket.getOutputStream());
+                 DataInputStream dataInputStream = new DataInputStream(socket.getInputStream())) {
+
+                dataOutputStream.writeUTF("PLACEMENT");
+                dataOutputStream.writeUTF(fileName);
+                dataOutputStream.flush();
+
+                int count = dataInputStream.readInt();
+                for (int i = 0; i < count; i++) {
+                    System.out.println("- " + dataInputStream.readUTF());
+                }
+                decisionCount += count;
+            } catch (IOException e) {
+                System.err.println("Erreur lors de la lecture des décisions de placement du serveur principal " + id + " : " + e.getMessage());
+            }
+        }
+        if (decisionCount == 0) {
+            System.out.println("Aucune décision de placement enregistrée.");
+        }
+    }
+
+    // Affiche l'état des serveurs secondaires vu par chaque serveur principal : chacun a
+    // son propre HealthMonitor
+    private static void showSecondaryHealth()
+    {
+        runAdminCommand("HEALTH");
+    }
+
+    // Affiche les mesures de chaque serveur principal, ou celles du serveur secondaire dont
+    // le numéro est donné (relayées par le premier serveur principal : elles ne dépendent
+    // pas du serveur qui les relaie)
+    private static void showServerStats(String secondaryServer)
+    {
+        int last = secondaryServer.isEmpty() ? principalServers.size() : 1;
+        for (int id = 1; id <= last; id++)
+        {
+            try (Socket socket = connectToPrincipal(id);
+                 DataOutputStream dataOutputStream = new DataOutputStream(socket.getOutputStream());
+                 DataInputStream dataInputStream = new DataInputStream(socket.getInputStream())) {
+
+                dataOutputStream.writeUTF("STATS");
+                dataOutputStream.writeUTF(secondaryServer);
+                dataOutputStream.flush();
+
+                if (last > 1) {
+                    System.out.println("# Serveur principal " + id);
+                }
+                int lineCount = dataInputStream.readInt();
+                for (int i = 0; i < lineCount; i++) {
+                    System.out.println(dataInputStream.readUTF());
+                }
+            } catch (IOException e) {
+                System.err.println("Erreur lors de la lecture des mesures du serveur principal " + id + " : " + e.getMessage());
+            }
+        }
+    }
+
+    // Commande d'administration sans argument dont la réponse est une liste de lignes :
+    // HEALTH (état des serveurs secondaires), RELOAD (relecture des serveurs secondaires)
+    // ou REBALANCE (état du rééquilibrage), envoyée à chaque serveur principal puisque
+    // chacun surveille et rééquilibre ses propres fichiers
+    private static void runAdminCommand(String command)
+    {
+        for (int id = 1; id <= principalServers.size(); id++)
+        {
+            try (Socket socket = connectToPrincipal(id);
+                 DataOutputStream dataOutputStream = new DataOutputStream(socket.getOutputStream());
+                 DataInputStream dataInputStream = new DataInputStream(socket.getInputStream())) {
+
+                dataOutputStream.writeUTF(command);
+                dataOutputStream.flush();
+
+                if (principalServers.size() > 1) {
+                    System.out.println("Serveur principal " + id + " :");
+                }
+                int lineCount = dataInputStream.readInt();
+                for (int i = 0; i < lineCount; i++) {
+                    System.out.println("- " + dataInputStream.readUTF());
+                }
+            } catch (IOException e) {
+                System.err.println("Erreur lors de la commande " + command + " sur le serveur principal " + id + " : " + e.getMessage());
+            }
         }
     }
-    
 
     private static void deleteFileFromServer(String fileName) 
     {
-        try (Socket socket = new Socket(principalServerAddress, principalServerPort); // Connexion au serveur principal
+        try (Socket socket = connectToPrincipal(fileName); // Connexion au serveur principal du fichier
              DataOutputStream dataOutputStream = new DataOutputStream(socket.getOutputStream());
              DataInputStream dataInputStream = new DataInputStream(socket.getInputStream())) {
 
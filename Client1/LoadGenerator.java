@@ -0,0 +1,530 @@
+package Client1;
+
+import Supervision.LatencyHistogram;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Génération de charge sans saisie au clavier, avec le protocole et le routage du Client
+// (le serveur principal de chaque fichier). Deux modes :
+//  - LOAD : des utilisateurs virtuels enchaînent des PUT, GET, LS et RM selon un mélange
+//    et une distribution de tailles donnés ; chacun ne lit et ne supprime que ses propres
+//    fichiers. Avec --record, chaque opération est écrite dans une trace rejouable.
+//  - REPLAY : rejoue une trace en respectant les décalages (--speed 2 : deux fois plus
+//    vite, 0 : sans attente). Les opérations d'un même fichier passent par le même
+//    utilisateur, dans l'ordre de la trace. La latence est comptée depuis l'instant prévu
+//    par la trace, pour qu'un serveur saturé ne masque pas son propre retard.
+// Le rapport donne pour chaque commande le nombre d'opérations, les erreurs, le débit et
+// les percentiles de latence (p50, p99, p999) des opérations réussies.
+//
+// Utilisation (depuis le répertoire du config.properties) :
+//   java Client1.Client <id> LOAD [--users 16] [--duration 30] [--operations 0] [--think 0]
+//                                 [--mix PUT:20,GET:60,LS:10,RM:10] [--sizes 1K:60,64K:30,1M:9,16M:1]
+//                                 [--preload 5] [--seed 1] [--record trace.csv] [--keep]
+//   java Client1.Client <id> REPLAY <trace.csv> [--users 16] [--speed 1] [--keep]
+// Trace : une opération par ligne, "décalage_ms,commande,fichier,taille" (# : commentaire).
+// Les fichiers créés sont supprimés à la fin, sauf avec --keep.
+class LoadGenerator
+{
+    private static final String[] COMMANDS = { "PUT", "GET", "LS", "RM" };
+    private static final String USAGE =
+        "Utilisation : java Client1.Client <id> LOAD [--users 16] [--duration 30] [--operations 0] [--think 0]\n"
+        + "                                   [--mix PUT:20,GET:60,LS:10,RM:10] [--sizes 1K:60,64K:30,1M:9,16M:1]\n"
+        + "                                   [--preload 5] [--seed 1] [--record trace.csv] [--keep]\n"
+        + "              java Client1.Client <id> REPLAY <trace.csv> [--users 16] [--speed 1] [--keep]";
+
+    // Mesures d'une commande
+    private static class Stats
+    {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LongAdder errors = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+    }
+
+    // Une ligne de trace
+    private static class Operation
+    {
+        final long offsetMillis;
+        final String command;
+        final String fileName;
+        final long size;
+
+        Operation(long offsetMillis, String command, String fileName, long size)
+        {
+            this.offsetMillis = offsetMillis;
+            this.command = command;
+            this.fileName = fileName;
+            this.size = size;
+        }
+    }
+
+    private final Map<String, Stats> stats = new LinkedHashMap<>();
+    // Fichiers créés et pas encore supprimés (nettoyage final)
+    private final Set<String> created = ConcurrentHashMap.newKeySet();
+    private final byte[] payload = new byte[256 * 1024]; // Contenu répété des PUT
+    private PrintWriter trace;
+    private long traceStart;
+
+    private LoadGenerator(long seed)
+    {
+        for (String command : COMMANDS) {
+            stats.put(command, new Stats());
+        }
+        new Random(seed).nextBytes(payload);
+    }
+
+    // args : LOAD ou REPLAY suivi de ses options (voir plus haut)
+    static void run(String[] args) throws IOException, InterruptedException
+    {
+        String mode = args[0].toUpperCase();
+        int users = 16;
+        long duration = 30;
+        long operations = 0;
+        long think = 0;
+        String mix = "PUT:20,GET:60,LS:10,RM:10";
+        String sizes = "1K:60,64K:30,1M:9,16M:1";
+        int preload = 5;
+        long seed = 1;
+        String record = null;
+        String replay = null;
+        double speed = 1;
+        boolean keep = false;
+
+        int i = 1;
+        if (mode.equals("REPLAY")) {
+            if (args.length < 2) {
+                System.err.println("Veuillez spécifier le fichier de trace à rejouer.");
+                System.err.println(USAGE);
+                System.exit(1);
+            }
+            replay = args[i++];
+        } else if (!mode.equals("LOAD")) {
+            System.err.println("Mode inconnu : " + args[0] + " (LOAD ou REPLAY).");
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+        for (; i < args.length; i++) {
+            switch (args[i]) {
+                case "--users": users = Integer.parseInt(value(args, i++)); break;
+                case "--duration": duration = Long.parseLong(value(args, i++)); break;
+                case "--operations": operations = Long.parseLong(value(args, i++)); break;
+                case "--think": think = Long.parseLong(value(args, i++)); break;
+                case "--mix": mix = value(args, i++); break;
+                case "--sizes": sizes = value(args, i++); break;
+                case "--preload": preload = Integer.parseInt(value(args, i++)); break;
+                case "--seed": seed = Long.parseLong(value(args, i++)); break;
+                case "--record": record = value(args, i++); break;
+                case "--speed": speed = Double.parseDouble(value(args, i++)); break;
+                case "--keep": keep = true; break;
+                default:
+                    System.err.println("Option inconnue : " + args[i]);
+                    System.err.println(USAGE);
+                    System.exit(1);
+            }
+        }
+
+        LoadGenerator generator = new LoadGenerator(seed);
+        try {
+            if (replay != null) {
+                generator.replay(Paths.get(replay), Math.max(1, users), speed);
+            } else {
+                if (record != null) {
+                    generator.trace = new PrintWriter(Files.newBufferedWriter(Paths.get(record), StandardCharsets.UTF_8));
+                    generator.trace.println("# décalage_ms,commande,fichier,taille");
+                }
+                generator.load(Math.max(1, users), duration, operations, think,
+                               parseWeights(mix, false), parseWeights(sizes, true), preload, seed);
+            }
+        } finally {
+            if (generator.trace != null) {
+                generator.trace.close();
+            }
+            if (!keep) {
+                generator.cleanup();
+            }
+        }
+    }
+
+    // Valeur de l'option args[i] ; sans valeur, affiche l'utilisation et s'arrête
+    private static String value(String[] args, int i)
+    {
+        if (i + 1 >= args.length) {
+            System.err.println("Valeur manquante pour l'option " + args[i] + ".");
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+        return args[i + 1];
+    }
+
+    // Mode LOAD : utilisateurs virtuels jusqu'à la fin de la durée ou du nombre d'opérations
+    private void load(int users, long durationSeconds, long operations, long thinkMillis,
+                      NavigableMap<Double, String> mix, NavigableMap<Double, String> sizes,
+                      int preload, long seed) throws InterruptedException
+    {
+        traceStart = System.nanoTime();
+        List<List<String>> owned = new ArrayList<>();
+        for (int user = 0; user < users; user++) {
+            owned.add(new ArrayList<>());
+        }
+
+        // Préchargement (hors mesures) pour que les premiers GET aient des fichiers à lire
+        if (preload > 0) {
+            ExecutorService loaders = Executors.newFixedThreadPool(users);
+            for (int user = 0; user < users; user++) {
+                int current = user;
+                loaders.submit(() -> {
+                    Random random = new Random(seed * 31 + current);
+                    for (int n = 0; n < preload; n++) {
+                        String fileName = "charge_" + current + "_p" + n + ".bin";
+                        long size = parseSize(pick(sizes, random));
+                        record("PUT", fileName, size);
+                        created.add(fileName);
+                        try {
+                            put(fileName, size);
+                            synchronized (owned.get(current)) {
+                                owned.get(current).add(fileName);
+                            }
+                        } catch (IOException e) {
+                            System.err.println("Préchargement de " + fileName + " : " + e.getMessage());
+                        }
+                    }
+                });
+            }
+            loaders.shutdown();
+            loaders.awaitTermination(1, TimeUnit.DAYS);
+            System.out.printf("Préchargement : %d fichiers en %.1f s%n", users * preload, (System.nanoTime() - traceStart) / 1e9);
+        }
+
+        long start = System.nanoTime();
+        long deadline = durationSeconds > 0 ? start + TimeUnit.SECONDS.toNanos(durationSeconds) : Long.MAX_VALUE;
+        AtomicLong remaining = new AtomicLong(operations > 0 ? operations : Long.MAX_VALUE);
+
+        List<Thread> threads = new ArrayList<>();
+        for (int user = 0; user < users; user++) {
+            int current = user;
+            Thread thread = new Thread(() -> user(current, owned.get(current), new Random(seed * 17 + current),
+                                                  deadline, remaining, thinkMillis, mix, sizes),
+                                       "utilisateur-" + user);
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        System.out.printf("LOAD : %d utilisateurs, mélange %s%n", users, mix.values());
+        report(System.nanoTime() - start);
+    }
+
+    private void user(int user, List<String> owned, Random random, long deadline, AtomicLong remaining,
+                      long thinkMillis, NavigableMap<Double, String> mix, NavigableMap<Double, String> sizes)
+    {
+        long sequence = 0;
+        while (System.nanoTime() < deadline && remaining.getAndDecrement() > 0)
+        {
+            String command = pick(mix, random);
+            String fileName = "";
+            long size = 0;
+            if (command.equals("GET") || command.equals("RM")) {
+                if (owned.isEmpty()) {
+                    command = "PUT"; // Rien à lire ou supprimer encore
+                } else {
+                    int index = random.nextInt(owned.size());
+                    fileName = command.equals("RM") ? owned.remove(index) : owned.get(index);
+                }
+            }
+            if (command.equals("PUT")) {
+                fileName = "charge_" + user + "_" + sequence++ + ".bin";
+                size = parseSize(pick(sizes, random));
+                owned.add(fileName);
+            }
+
+            record(command, fileName, size);
+            execute(command, fileName, size, System.nanoTime());
+
+            if (thinkMillis > 0) {
+                // Temps de réflexion de loi exponentielle, de moyenne thinkMillis
+                long pause = (long) (-Math.log(1 - random.nextDouble()) * thinkMillis);
+                try {
+                    Thread.sleep(Math.min(pause, Math.max(0, (deadline - System.nanoTime()) / 1_000_000)));
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    // Mode REPLAY : un utilisateur par groupe de fichiers pour garder l'ordre de chaque fichier
+    private void replay(Path tracePath, int users, double speed) throws IOException, InterruptedException
+    {
+        List<Operation> operations = readTrace(tracePath);
+        ExecutorService[] workers = new ExecutorService[users];
+        for (int user = 0; user < users; user++) {
+            workers[user] = Executors.newSingleThreadExecutor();
+        }
+
+        long start = System.nanoTime();
+        int next = 0;
+        for (Operation operation : operations)
+        {
+            long scheduled = speed > 0 ? start + (long) (operation.offsetMillis * 1_000_000 / speed) : 0;
+            long wait = scheduled - System.nanoTime();
+            if (speed > 0 && wait > 0) {
+                Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+            }
+            int user = operation.fileName.isEmpty() ? next++ % users : Math.floorMod(operation.fileName.hashCode(), users);
+            workers[user].submit(() -> execute(operation.command, operation.fileName, operation.size,
+                                               speed > 0 ? scheduled : System.nanoTime()));
+        }
+        for (ExecutorService worker : workers) {
+            worker.shutdown();
+        }
+        for (ExecutorService worker : workers) {
+            worker.awaitTermination(1, TimeUnit.DAYS);
+        }
+
+        System.out.printf("REPLAY : %s, %d opérations, %d utilisateurs, vitesse %s%n",
+                          tracePath, operations.size(), users, speed > 0 ? "x" + speed : "maximale");
+        report(System.nanoTime() - start);
+    }
+
+    private static List<Operation> readTrace(Path tracePath) throws IOException
+    {
+        List<Operation> operations = new ArrayList<>();
+        int lineNumber = 0;
+        for (String line : Files.readAllLines(tracePath, StandardCharsets.UTF_8))
+        {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split(",", -1);
+            String command = fields.length > 1 ? fields[1].trim().toUpperCase() : "";
+            if (fields.length != 4 || !Arrays.asList(COMMANDS).contains(command)) {
+                System.err.println("Ligne " + lineNumber + " ignorée : " + line);
+                continue;
+            }
+            operations.add(new Operation(Long.parseLong(fields[0].trim()), command, fields[2].trim(),
+                                         fields[3].trim().isEmpty() ? 0 : Long.parseLong(fields[3].trim())));
+        }
+        operations.sort(Comparator.comparingLong(operation -> operation.offsetMillis));
+        return operations;
+    }
+
+    // Exécute une opération et la mesure depuis startNanos (instant prévu ou réel)
+    private void execute(String command, String fileName, long size, long startNanos)
+    {
+        Stats commandStats = stats.get(command);
+        try {
+            switch (command) {
+                case "PUT":
+                    created.add(fileName);
+                    commandStats.bytes.add(put(fileName, size));
+                    break;
+                case "GET":
+                    commandStats.bytes.add(get(fileName));
+                    break;
+                case "LS":
+                    ls();
+                    break;
+                case "RM":
+                    rm(fileName);
+                    created.remove(fileName);
+                    break;
+            }
+            commandStats.latency.recordNanos(System.nanoTime() - startNanos);
+        } catch (IOException e) {
+            commandStats.errors.increment();
+        }
+    }
+
+    private void record(String command, String fileName, long size)
+    {
+        if (trace != null) {
+            synchronized (trace) {
+                trace.println((System.nanoTime() - traceStart) / 1_000_000 + "," + command + "," + fileName + "," + size);
+            }
+        }
+    }
+
+    private void report(long elapsedNanos)
+    {
+        double seconds = elapsedNanos / 1e9;
+        System.out.printf("Durée : %.1f s%n", seconds);
+        System.out.printf("%-5s %8s %8s %10s %10s %10s %10s %10s %10s%n",
+                          "op", "n", "erreurs", "ops/s", "Mo/s", "p50 ms", "p99 ms", "p999 ms", "max ms");
+        long totalCount = 0;
+        long totalErrors = 0;
+        for (Map.Entry<String, Stats> entry : stats.entrySet())
+        {
+            Stats commandStats = entry.getValue();
+            long count = commandStats.latency.count();
+            long errors = commandStats.errors.sum();
+            totalCount += count;
+            totalErrors += errors;
+            if (count == 0 && errors == 0) {
+                continue;
+            }
+            System.out.printf("%-5s %8d %8d %10.1f %10.2f %10.2f %10.2f %10.2f %10.2f%n", entry.getKey(), count, errors,
+                              count / seconds, commandStats.bytes.sum() / (1024.0 * 1024.0) / seconds,
+                              commandStats.latency.percentile(0.50) / 1000.0, commandStats.latency.percentile(0.99) / 1000.0,
+                              commandStats.latency.percentile(0.999) / 1000.0, commandStats.latency.max() / 1000.0);
+        }
+        System.out.printf("%-5s %8d %8d %10.1f%n", "total", totalCount, totalErrors, totalCount / seconds);
+    }
+
+    // Supprime les fichiers créés et encore présents (hors mesures)
+    private void cleanup()
+    {
+        int removed = 0;
+        for (String fileName : created) {
+            try {
+                rm(fileName);
+                removed++;
+            } catch (IOException e) {
+                // Déjà absent ou serveur injoignable : rien de plus à faire
+            }
+        }
+        if (removed > 0) {
+            System.out.println(removed + " fichier(s) de charge supprimé(s).");
+        }
+    }
+
+    // Protocole du serveur principal, tel qu'utilisé par Client
+
+    private long put(String fileName, long size) throws IOException
+    {
+        try (Socket socket = Client.connectToPrincipal(fileName);
+             DataOutputStream output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+             DataInputStream input = new DataInputStream(socket.getInputStream())) {
+            output.writeUTF("PUT");
+            output.writeUTF(fileName);
+            output.writeLong(size);
+            for (long sent = 0; sent < size; ) {
+                int length = (int) Math.min(payload.length, size - sent);
+                output.write(payload, 0, length);
+                sent += length;
+            }
+            output.flush();
+            socket.shutdownOutput(); // Le serveur lit jusqu'à la fin du flux
+            String response = input.readUTF(); // Envoyée une fois le fichier distribué
+            if (response.startsWith("Erreur")) {
+                throw new IOException(response);
+            }
+            return size;
+        }
+    }
+
+    private static long get(String fileName) throws IOException
+    {
+        try (Socket socket = Client.connectToPrincipal(fileName);
+             DataOutputStream output = new DataOutputStream(socket.getOutputStream());
+             DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+            output.writeUTF("GET");
+            output.writeUTF(fileName);
+            output.flush();
+
+            String header = input.readUTF(); // Nom du fichier, ou message d'erreur
+            if (header.startsWith("Erreur")) {
+                throw new IOException(header);
+            }
+            long size = input.readLong();
+            long remaining = size;
+            byte[] buffer = new byte[256 * 1024];
+            while (remaining > 0) {
+                int bytesRead = input.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (bytesRead == -1) {
+                    throw new IOException("réponse incomplète pour " + fileName);
+                }
+                remaining -= bytesRead;
+            }
+            return size;
+        }
+    }
+
+    // LS auprès de chaque serveur principal, comme le Client
+    private static void ls() throws IOException
+    {
+        for (int id = 1; id <= Client.principalServers.size(); id++) {
+            try (Socket socket = Client.connectToPrincipal(id);
+                 DataOutputStream output = new DataOutputStream(socket.getOutputStream());
+                 DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+                output.writeUTF("LS");
+                output.flush();
+                int count = input.readInt();
+                for (int i = 0; i < count; i++) {
+                    input.readUTF();
+                }
+            }
+        }
+    }
+
+    private static void rm(String fileName) throws IOException
+    {
+        try (Socket socket = Client.connectToPrincipal(fileName);
+             DataOutputStream output = new DataOutputStream(socket.getOutputStream());
+             DataInputStream input = new DataInputStream(socket.getInputStream())) {
+            output.writeUTF("RM");
+            output.writeUTF(fileName);
+            output.flush();
+            String response = input.readUTF(); // Puis une ligne par serveur secondaire
+            input.transferTo(OutputStream.nullOutputStream());
+            if (response.startsWith("Erreur")) {
+                throw new IOException(response);
+            }
+        }
+    }
+
+    // Outils
+
+    // "A:3,B:1" -> tirage pondéré : clés = poids cumulés
+    private static NavigableMap<Double, String> parseWeights(String text, boolean sizes)
+    {
+        NavigableMap<Double, String> weights = new TreeMap<>();
+        double total = 0;
+        for (String item : text.split(","))
+        {
+            String[] fields = item.trim().split(":");
+            double weight = fields.length > 1 ? Double.parseDouble(fields[1]) : 1;
+            String value = sizes ? fields[0].trim() : fields[0].trim().toUpperCase();
+            if (sizes) {
+                parseSize(value); // Vérifie le format
+            } else if (!Arrays.asList(COMMANDS).contains(value)) {
+                throw new IllegalArgumentException("commande inconnue dans le mélange : " + value);
+            }
+            if (weight > 0) {
+                total += weight;
+                weights.put(total, value);
+            }
+        }
+        if (weights.isEmpty()) {
+            throw new IllegalArgumentException("aucun poids positif dans " + text);
+        }
+        return weights;
+    }
+
+    private static String pick(NavigableMap<Double, String> weights, Random random)
+    {
+        return weights.higherEntry(random.nextDouble() * weights.lastKey()).getValue();
+    }
+
+    private static long parseSize(String text)
+    {
+        String value = text.trim().toUpperCase();
+        long unit = 1;
+        if (value.endsWith("K")) unit = 1024;
+        else if (value.endsWith("M")) unit = 1024 * 1024;
+        else if (value.endsWith("G")) unit = 1024L * 1024 * 1024;
+        if (unit > 1) {
+            value = value.substring(0, value.length() - 1);
+        }
+        return Long.parseLong(value) * unit;
+    }
+}
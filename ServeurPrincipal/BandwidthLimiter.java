@@ -0,0 +1,86 @@
+package ServeurPrincipal;
+
+import java.io.*;
+
+// Seau à jetons en octets par seconde : acquire(n) bloque jusqu'à ce que n octets
+// puissent passer. Une rafale d'au plus une seconde de débit est autorisée.
+//
+// Le temps passé à attendre des jetons est cumulé par thread (waitedNanos), pour que
+// les mesures de débit des serveurs secondaires (PlacementEngine) ne comptent pas les
+// ralentissements voulus de la réparation, du rééquilibrage et de l'ordonnanceur.
+class BandwidthLimiter
+{
+    private static final ThreadLocal<long[]> waited = ThreadLocal.withInitial(() -> new long[1]);
+
+    private final long bytesPerSecond;
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+
+    // bytesPerSecond <= 0 : aucune limite
+    BandwidthLimiter(long bytesPerSecond)
+    {
+        this.bytesPerSecond = bytesPerSecond;
+        this.tokens = Math.max(0, bytesPerSecond);
+    }
+
+    void acquire(int bytes) throws InterruptedIOException
+    {
+        if (bytesPerSecond <= 0) {
+            return;
+        }
+
+        long waitNanos;
+        synchronized (this) {
+            refill();
+            tokens -= bytes; // Peut devenir négatif : la dette est remboursée par l'attente
+            waitNanos = tokens >= 0 ? 0 : (long) (-tokens * 1_000_000_000.0 / bytesPerSecond);
+        }
+
+        if (waitNanos > 0) {
+            long start = System.nanoTime();
+            try {
+                Thread.sleep(waitNanos / 1_000_000, (int) (waitNanos % 1_000_000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("attente de bande passante interrompue");
+            } finally {
+                recordWait(System.nanoTime() - start);
+            }
+        }
+    }
+
+    // Temps total (ns) passé par le thread courant à attendre des jetons
+    static long waitedNanos()
+    {
+        return waited.get()[0];
+    }
+
+    // Attente due à un autre seau (ordonnanceur des transferts)
+    static void recordWait(long nanos)
+    {
+        waited.get()[0] += nanos;
+    }
+
+    // Flux dont chaque lecture consomme des jetons
+    InputStream wrap(InputStream input)
+    {
+        return new FilterInputStream(input) {
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException
+            {
+                int bytesRead = super.read(buffer, offset, length);
+                if (bytesRead > 0) {
+                    acquire(bytesRead);
+                }
+                return bytesRead;
+            }
+        };
+    }
+
+    private void refill()
+    {
+        long now = System.nanoTime();
+        tokens = Math.min(bytesPerSecond, tokens + (now - lastRefill) * bytesPerSecond / 1_000_000_000.0);
+        lastRefill = now;
+    }
+}
@@ -0,0 +1,207 @@
+package ServeurPrincipal;
+
+import Stockage.GroupCommit;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Répartition d'un fichier sur les serveurs secondaires : quelle partie se trouve
+// sur quel serveur, à quel décalage dans le fichier d'origine et avec quelle taille.
+// Le manifeste est enregistré par le serveur principal dans <répertoire>/.manifests.
+//
+// Chaque enregistrement porte une nouvelle révision. La réparation et le rééquilibrage
+// lisent un manifeste, déplacent une partie puis l'enregistrent avec saveIfUnchanged :
+// si le manifeste a été modifié entre-temps (autre déplacement, nouvel envoi, RM), leur
+// modification est abandonnée au lieu d'écraser celle de l'autre.
+//
+// Les parties d'un envoi portent l'identifiant de cet envoi (upload.id) dans leur nom :
+// un nouvel envoi du même fichier écrit à côté des anciennes parties sans les remplacer,
+// et le renommage de son manifeste est le seul point de publication. Les anciennes
+// parties sont supprimées ensuite. Les manifestes antérieurs n'ont pas d'identifiant.
+class FileManifest
+{
+    static final String MANIFEST_DIRECTORY = ".manifests";
+
+    private static final AtomicLong idCounter = new AtomicLong();
+
+    static class Part
+    {
+        final int index;      // Numéro de la partie (1..n)
+        final int serverId;   // Numéro du serveur secondaire dans config.properties (1..n)
+        final long offset;    // Décalage de la partie dans le fichier d'origine
+        final long length;    // Taille de la partie en octets
+        long checksum = -1;   // CRC32 de la partie, -1 si inconnu
+
+        Part(int index, int serverId, long offset, long length)
+        {
+            this.index = index;
+            this.serverId = serverId;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    final String fileName;
+    final long fileSize;
+    final String upload;            // Identifiant de l'envoi, "" pour un manifeste antérieur
+    final List<Part> parts = new ArrayList<>();
+    private String revision = "";   // Révision lue sur disque, "" si jamais enregistré
+
+    FileManifest(String fileName, long fileSize)
+    {
+        this(fileName, fileSize, "");
+    }
+
+    FileManifest(String fileName, long fileSize, String upload)
+    {
+        this.fileName = fileName;
+        this.fileSize = fileSize;
+        this.upload = upload;
+    }
+
+    // Identifiant unique pour un nouvel envoi ou une révision
+    static String newId()
+    {
+        return Long.toString(System.currentTimeMillis(), 36) + "-" + idCounter.incrementAndGet();
+    }
+
+    // Nom de la partie sur son serveur secondaire : part_<n>_<envoi>_received_<fichier>
+    String partName(Part part)
+    {
+        return "part_" + part.index + (upload.isEmpty() ? "" : "_" + upload) + "_received_" + fileName;
+    }
+
+    void addPart(int serverId, long offset, long length)
+    {
+        parts.add(new Part(parts.size() + 1, serverId, offset, length));
+    }
+
+    // Déplace une partie sur un autre serveur secondaire (réparation)
+    void movePart(int index, int serverId)
+    {
+        Part old = parts.get(index - 1);
+        Part moved = new Part(index, serverId, old.offset, old.length);
+        moved.checksum = old.checksum;
+        parts.set(index - 1, moved);
+    }
+
+    private static File manifestFile(String directory, String fileName)
+    {
+        return new File(new File(directory, MANIFEST_DIRECTORY), fileName + ".properties");
+    }
+
+    void save(String directory, GroupCommit groupCommit) throws IOException
+    {
+        write(directory, groupCommit, false);
+    }
+
+    // Enregistre le manifeste seulement s'il est encore dans la révision lue : false si
+    // le fichier a été supprimé (RM, qu'une réparation ne doit pas annuler) ou modifié
+    // depuis la lecture
+    boolean saveIfUnchanged(String directory, GroupCommit groupCommit) throws IOException
+    {
+        return write(directory, groupCommit, true);
+    }
+
+    // Écrit le manifeste dans un fichier temporaire synchronisé sur disque (par lot, sans
+    // verrou) puis le publie par renommage ; seuls la vérification et le renommage se
+    // font sous le verrou des manifestes
+    private boolean write(String directory, GroupCommit groupCommit, boolean onlyIfUnchanged) throws IOException
+    {
+        File file = manifestFile(directory, fileName);
+        file.getParentFile().mkdirs();
+
+        String newRevision = newId();
+        Properties prop = new Properties();
+        prop.setProperty("manifest.revision", newRevision);
+        prop.setProperty("upload.id", upload);
+        prop.setProperty("file.name", fileName);
+        prop.setProperty("file.size", Long.toString(fileSize));
+        prop.setProperty("part.count", Integer.toString(parts.size()));
+        for (Part part : parts) {
+            prop.setProperty("part" + part.index + ".server", Integer.toString(part.serverId));
+            prop.setProperty("part" + part.index + ".offset", Long.toString(part.offset));
+            prop.setProperty("part" + part.index + ".length", Long.toString(part.length));
+            prop.setProperty("part" + part.index + ".crc", Long.toString(part.checksum));
+        }
+
+        File temporary = GroupCommit.temporaryFile(file);
+        try {
+            try (OutputStream output = new FileOutputStream(temporary)) {
+                prop.store(output, "Manifeste de " + fileName);
+            }
+            groupCommit.force(temporary);
+
+            synchronized (FileManifest.class) {
+                if (onlyIfUnchanged && (!file.isFile() || !revision.equals(readRevision(file)))) {
+                    return false;
+                }
+                GroupCommit.move(temporary, file);
+                revision = newRevision;
+            }
+        } finally {
+            temporary.delete(); // Sans effet une fois publié
+        }
+        groupCommit.force(file.getParentFile());
+        return true;
+    }
+
+    private static String readRevision(File file) throws IOException
+    {
+        Properties prop = new Properties();
+        try (InputStream input = new FileInputStream(file)) {
+            prop.load(input);
+        }
+        return prop.getProperty("manifest.revision", "");
+    }
+
+    // Retourne null si aucun manifeste n'a été enregistré pour ce fichier
+    static FileManifest load(String directory, String fileName) throws IOException
+    {
+        File file = manifestFile(directory, fileName);
+        if (!file.isFile()) {
+            return null;
+        }
+
+        Properties prop = new Properties();
+        try (InputStream input = new FileInputStream(file)) {
+            prop.load(input);
+        }
+
+        try {
+            FileManifest manifest = new FileManifest(fileName, Long.parseLong(prop.getProperty("file.size", "0")), prop.getProperty("upload.id", ""));
+            manifest.revision = prop.getProperty("manifest.revision", "");
+            int partCount = Integer.parseInt(prop.getProperty("part.count", "0"));
+            for (int i = 1; i <= partCount; i++) {
+                manifest.addPart(Integer.parseInt(prop.getProperty("part" + i + ".server")),
+                                 Long.parseLong(prop.getProperty("part" + i + ".offset")),
+                                 Long.parseLong(prop.getProperty("part" + i + ".length")));
+                manifest.parts.get(i - 1).checksum = Long.parseLong(prop.getProperty("part" + i + ".crc", "-1"));
+            }
+            return manifest;
+        } catch (NumberFormatException e) {
+            throw new IOException("Manifeste invalide pour " + fileName + " : " + e.getMessage());
+        }
+    }
+
+    // Noms des fichiers ayant un manifeste
+    static List<String> listFileNames(String directory)
+    {
+        List<String> fileNames = new ArrayList<>();
+        File[] files = new File(directory, MANIFEST_DIRECTORY).listFiles((dir, name) -> name.endsWith(".properties"));
+        if (files != null) {
+            for (File file : files) {
+                fileNames.add(file.getName().substring(0, file.getName().length() - ".properties".length()));
+            }
+        }
+        return fileNames;
+    }
+
+    static boolean delete(String directory, String fileName)
+    {
+        synchronized (FileManifest.class) {
+            return manifestFile(directory, fileName).delete();
+        }
+    }
+}
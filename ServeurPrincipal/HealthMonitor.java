@@ -0,0 +1,270 @@
+package ServeurPrincipal;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Surveillance des serveurs secondaires en tâche de fond : chaque serveur reçoit
+// périodiquement la commande INFO (qui sert aussi à mettre à jour son espace libre).
+// Un serveur qui ne répond pas passe SUSPECT, puis DOWN après plusieurs échecs
+// consécutifs. Les requêtes des clients ignorent immédiatement les serveurs DOWN
+// au lieu d'attendre l'expiration d'une connexion. Un serveur retiré de la
+// configuration reste surveillé et joignable (ses parties doivent encore être
+// déplacées) mais ne fait plus partie des membres qui reçoivent des parties.
+class HealthMonitor
+{
+    enum State { UP, SUSPECT, DOWN }
+
+    private static class Node
+    {
+        final int serverId;
+        final String address;
+        final int port;
+        final int connectTimeout;   // ms
+        final int readTimeout;      // ms
+        volatile State state = State.SUSPECT; // Tant que le premier battement n'a pas eu lieu
+        volatile long lastSeen;               // ms, 0 si jamais vu
+        volatile long lastLatency = -1;       // ns, -1 si inconnu
+        volatile boolean decommissioned;      // Retiré : plus aucune nouvelle partie
+        int consecutiveFailures;
+
+        Node(int serverId, String address, int port, int connectTimeout, int readTimeout)
+        {
+            this.serverId = serverId;
+            this.address = address;
+            this.port = port;
+            this.connectTimeout = connectTimeout;
+            this.readTimeout = readTimeout;
+        }
+    }
+
+    private final Map<Integer, Node> nodes = new ConcurrentHashMap<>();
+    private final PlacementEngine placementEngine;
+    private final long heartbeatInterval;  // ms
+    private final int heartbeatTimeout;    // ms
+    private final int downAfter;           // Échecs consécutifs avant DOWN
+    private ScheduledExecutorService scheduler;
+    private ExecutorService pingers;
+
+    HealthMonitor(PlacementEngine placementEngine, long heartbeatInterval, int heartbeatTimeout, int downAfter)
+    {
+        this.placementEngine = placementEngine;
+        this.heartbeatInterval = heartbeatInterval;
+        this.heartbeatTimeout = heartbeatTimeout;
+        this.downAfter = Math.max(1, downAfter);
+    }
+
+    // Ajoute un serveur, ou le remplace si son adresse ou ses délais ont changé
+    // (relecture de la configuration). Retourne true si le serveur était inconnu.
+    boolean register(int serverId, String address, int port, int connectTimeout, int readTimeout)
+    {
+        Node previous = nodes.get(serverId);
+        if (previous != null && previous.address.equals(address) && previous.port == port
+            && previous.connectTimeout == connectTimeout && previous.readTimeout == readTimeout) {
+            return false;
+        }
+        Node node = new Node(serverId, address, port, connectTimeout, readTimeout);
+        if (previous != null) {
+            node.decommissioned = previous.decommissioned;
+        }
+        nodes.put(serverId, node);
+        return previous == null;
+    }
+
+    // Retire un serveur des membres (ou l'y remet) ; retourne true si l'état a changé
+    boolean setDecommissioned(int serverId, boolean decommissioned)
+    {
+        Node node = nodes.get(serverId);
+        if (node == null || node.decommissioned == decommissioned) {
+            return false;
+        }
+        node.decommissioned = decommissioned;
+        return true;
+    }
+
+    boolean isDecommissioned(int serverId)
+    {
+        Node node = nodes.get(serverId);
+        return node == null || node.decommissioned;
+    }
+
+    // Serveurs connus non retirés, quel que soit leur état, dans l'ordre de leur numéro
+    List<Integer> members()
+    {
+        List<Integer> servers = new ArrayList<>();
+        for (Node node : nodes.values()) {
+            if (!node.decommissioned) {
+                servers.add(node.serverId);
+            }
+        }
+        Collections.sort(servers);
+        return servers;
+    }
+
+    // Numéros de tous les serveurs connus, retirés compris
+    Set<Integer> serverIds()
+    {
+        return new TreeSet<>(nodes.keySet());
+    }
+
+    synchronized void start()
+    {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(daemon("surveillance-secondaires"));
+        pingers = Executors.newCachedThreadPool(daemon("battement-secondaire"));
+        heartbeat(); // Premier état connu avant d'accepter des clients
+        scheduler.scheduleWithFixedDelay(this::heartbeat, heartbeatInterval, heartbeatInterval, TimeUnit.MILLISECONDS);
+    }
+
+    private static ThreadFactory daemon(String name)
+    {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    // Battement immédiat d'un seul serveur (serveur ajouté, sans attendre le suivant)
+    void probe(int serverId)
+    {
+        Node node = nodes.get(serverId);
+        if (node != null) {
+            ping(node);
+        }
+    }
+
+    // Un battement : tous les serveurs sont interrogés en parallèle
+    private void heartbeat()
+    {
+        List<Future<?>> pending = new ArrayList<>();
+        for (Node node : nodes.values()) {
+            pending.add(pingers.submit(() -> ping(node)));
+        }
+        for (Future<?> future : pending) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                ServeurPrincipal.log.error("Erreur de surveillance : %s", e.getCause().getMessage());
+            }
+        }
+    }
+
+    private void ping(Node node)
+    {
+        long start = System.nanoTime();
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(node.address, node.port), Math.min(node.connectTimeout, heartbeatTimeout));
+            socket.setSoTimeout(heartbeatTimeout);
+            DataOutputStream outputStream = new DataOutputStream(socket.getOutputStream());
+            DataInputStream inputStream = new DataInputStream(socket.getInputStream());
+
+            outputStream.writeUTF("INFO");
+            outputStream.flush();
+            long freeSpace = inputStream.readLong();
+
+            node.lastLatency = System.nanoTime() - start;
+            ServeurPrincipal.recordSecondary(node.serverId, "INFO", start, 0, 0, false);
+            placementEngine.updateFreeSpace(node.serverId, freeSpace);
+            markUp(node);
+        } catch (IOException e) {
+            ServeurPrincipal.recordSecondary(node.serverId, "INFO", start, 0, 0, true);
+            markFailed(node, e);
+        }
+    }
+
+    private void markUp(Node node)
+    {
+        State previous;
+        synchronized (node) {
+            previous = node.state;
+            node.consecutiveFailures = 0;
+            node.lastSeen = System.currentTimeMillis();
+            node.state = State.UP;
+        }
+        if (previous != State.UP) {
+            ServeurPrincipal.log.info("Serveur secondaire %s : %s -> UP", node.serverId, previous);
+        }
+    }
+
+    private void markFailed(Node node, IOException cause)
+    {
+        State previous;
+        State next;
+        synchronized (node) {
+            previous = node.state;
+            node.consecutiveFailures++;
+            node.state = node.consecutiveFailures >= downAfter ? State.DOWN : State.SUSPECT;
+            next = node.state;
+        }
+        if (previous != next) {
+            ServeurPrincipal.log.error("Serveur secondaire %s : %s -> %s (%s)", node.serverId, previous, next, cause.getMessage());
+        }
+    }
+
+    State state(int serverId)
+    {
+        Node node = nodes.get(serverId);
+        return node == null ? State.DOWN : node.state;
+    }
+
+    // Serveurs membres en état UP, dans l'ordre de leur numéro
+    List<Integer> upServers()
+    {
+        List<Integer> servers = new ArrayList<>();
+        for (Node node : nodes.values()) {
+            if (node.state == State.UP && !node.decommissioned) {
+                servers.add(node.serverId);
+            }
+        }
+        Collections.sort(servers);
+        return servers;
+    }
+
+    // Connexion à un serveur secondaire avec ses délais de connexion et de lecture.
+    // Échoue immédiatement si le serveur est DOWN ; un échec de connexion compte
+    // comme un battement manqué.
+    Socket connect(int serverId) throws IOException
+    {
+        Node node = nodes.get(serverId);
+        if (node == null) {
+            throw new IOException("serveur secondaire " + serverId + " inconnu");
+        }
+        if (node.state == State.DOWN) {
+            throw new IOException("serveur secondaire " + serverId + " hors service");
+        }
+
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(node.address, node.port), node.connectTimeout);
+            socket.setSoTimeout(node.readTimeout);
+            return socket;
+        } catch (IOException e) {
+            socket.close();
+            markFailed(node, e);
+            throw e;
+        }
+    }
+
+    // Une ligne par serveur : état, dernière réponse et latence du dernier battement
+    List<String> describe()
+    {
+        List<String> lines = new ArrayList<>();
+        List<Integer> serverIds = new ArrayList<>(nodes.keySet());
+        Collections.sort(serverIds);
+        for (int serverId : serverIds) {
+            Node node = nodes.get(serverId);
+            lines.add("Serveur secondaire " + serverId + " (" + node.address + ":" + node.port + ") : " + node.state
+                      + (node.decommissioned ? " (retiré)" : "")
+                      + ", vu il y a " + (node.lastSeen == 0 ? "jamais" : (System.currentTimeMillis() - node.lastSeen) + " ms")
+                      + ", latence " + (node.lastLatency < 0 ? "inconnue" : String.format("%.2f ms", node.lastLatency / 1_000_000.0)));
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,216 @@
+package ServeurPrincipal;
+
+import java.util.*;
+
+// Placement des parties sur les serveurs secondaires. Chaque partie (nom du fichier,
+// numéro) va sur son serveur préféré, choisi par hachage de rendez-vous pondéré
+// (server.secondaryN.weight) : le même classement sert aux nouveaux envois, à la
+// réparation et au rééquilibrage, qui ne déplace donc que ce qu'un changement des
+// membres impose. Un serveur sans place (espace libre annoncé par INFO) est sauté au
+// profit du suivant dans le classement. Les transferts en cours et la moyenne glissante
+// du débit observé accompagnent chaque décision, conservée pour pouvoir être consultée
+// (commande PLACEMENT).
+class PlacementEngine
+{
+    private static final double THROUGHPUT_SMOOTHING = 0.3;          // Poids de la dernière mesure
+    private static final double DEFAULT_THROUGHPUT = 50_000_000;     // Octets/s tant qu'aucune mesure n'existe
+    private static final long MIN_MEASURED_BYTES = 64 * 1024;        // En dessous, la latence fausse la mesure
+    private static final long FREE_SPACE_MARGIN = 16 * 1024 * 1024;  // Espace laissé libre sur chaque serveur
+    private static final int HISTORY_SIZE = 500;
+
+    private static class NodeStats
+    {
+        long freeSpace = -1;                  // -1 : inconnu
+        int activeTransfers;
+        double throughput = DEFAULT_THROUGHPUT;
+        boolean measured;
+    }
+
+    static class Decision
+    {
+        final long time;
+        final String fileName;
+        final int partIndex;
+        final int serverId;
+        final long length;
+        final double weight;
+        final long freeSpace;
+        final int activeTransfers;
+        final double throughput;
+
+        Decision(String fileName, int partIndex, int serverId, long length, double weight, NodeStats stats)
+        {
+            this.time = System.currentTimeMillis();
+            this.fileName = fileName;
+            this.partIndex = partIndex;
+            this.serverId = serverId;
+            this.length = length;
+            this.weight = weight;
+            this.freeSpace = stats.freeSpace;
+            this.activeTransfers = stats.activeTransfers;
+            this.throughput = stats.throughput;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("%tFT%<tT %s partie %d -> serveur %d : %d octets (poids %.3f, libre %d, transferts %d, débit %.0f o/s)",
+                                 time, fileName, partIndex, serverId, length, weight, freeSpace, activeTransfers, throughput);
+        }
+    }
+
+    private final Map<Integer, NodeStats> nodes = new HashMap<>();
+    private final Map<Integer, Double> weights = new HashMap<>();
+    private final Deque<Decision> history = new ArrayDeque<>();
+
+    private synchronized NodeStats stats(int serverId)
+    {
+        return nodes.computeIfAbsent(serverId, id -> new NodeStats());
+    }
+
+    synchronized void setWeight(int serverId, double weight)
+    {
+        weights.put(serverId, weight);
+    }
+
+    synchronized double weight(int serverId)
+    {
+        return weights.getOrDefault(serverId, 1.0);
+    }
+
+    synchronized void updateFreeSpace(int serverId, long freeSpace)
+    {
+        stats(serverId).freeSpace = freeSpace;
+    }
+
+    synchronized void beginTransfer(int serverId)
+    {
+        stats(serverId).activeTransfers++;
+    }
+
+    // Fin d'un transfert vers ou depuis un serveur secondaire, avec sa durée pour le débit
+    synchronized void endTransfer(int serverId, long bytes, long elapsedNanos)
+    {
+        NodeStats stats = stats(serverId);
+        stats.activeTransfers = Math.max(0, stats.activeTransfers - 1);
+        if (bytes < MIN_MEASURED_BYTES || elapsedNanos <= 0) {
+            return;
+        }
+
+        double measured = bytes * 1_000_000_000.0 / elapsedNanos;
+        stats.throughput = stats.measured ? THROUGHPUT_SMOOTHING * measured + (1 - THROUGHPUT_SMOOTHING) * stats.throughput : measured;
+        stats.measured = true;
+        if (stats.freeSpace >= 0) {
+            stats.freeSpace = Math.max(0, stats.freeSpace - bytes);
+        }
+    }
+
+    // Découpe fileSize en parties contiguës de même taille, une par serveur ayant de la
+    // place, et place chacune sur le premier serveur de son classement qui peut la
+    // recevoir. Retourne un manifeste vide si le fichier ne tient nulle part. Chaque plan
+    // reçoit un nouvel identifiant d'envoi, donc ses propres noms de parties.
+    synchronized FileManifest plan(String fileName, long fileSize, List<Integer> serverIds)
+    {
+        Map<Integer, Long> room = new HashMap<>();
+        for (int serverId : serverIds)
+        {
+            NodeStats stats = stats(serverId);
+            long capacity = stats.freeSpace < 0 ? Long.MAX_VALUE : Math.max(0, stats.freeSpace - FREE_SPACE_MARGIN);
+            if (capacity > 0) {
+                room.put(serverId, capacity);
+            }
+        }
+
+        FileManifest manifest = new FileManifest(fileName, fileSize, FileManifest.newId());
+        int partCount = (int) Math.max(1, Math.min(room.size(), fileSize));
+        List<Decision> decisions = new ArrayList<>();
+        long offset = 0;
+        for (int index = 1; index <= partCount; index++)
+        {
+            long length = fileSize / partCount + (index <= fileSize % partCount ? 1 : 0);
+            int target = -1;
+            for (int serverId : rank(fileName, index, room.keySet())) {
+                if (room.get(serverId) >= length) {
+                    target = serverId;
+                    break;
+                }
+            }
+            if (target == -1) {
+                return new FileManifest(fileName, fileSize, manifest.upload);
+            }
+            room.put(target, room.get(target) - length);
+            manifest.addPart(target, offset, length);
+            offset += length;
+            decisions.add(new Decision(fileName, index, target, length, weight(target), stats(target)));
+        }
+        for (Decision decision : decisions) {
+            record(decision);
+        }
+        return manifest;
+    }
+
+    // Choix d'un seul serveur pour une partie existante (réparation) : le premier de son
+    // classement qui a la place. Retourne -1 si aucun serveur ne convient.
+    synchronized int pickServer(String fileName, int partIndex, long length, List<Integer> serverIds)
+    {
+        for (int serverId : rank(fileName, partIndex, serverIds))
+        {
+            NodeStats stats = stats(serverId);
+            if (stats.freeSpace < 0 || stats.freeSpace - FREE_SPACE_MARGIN >= length) {
+                record(new Decision(fileName, partIndex, serverId, length, weight(serverId), stats));
+                return serverId;
+            }
+        }
+        return -1;
+    }
+
+    // Serveur préféré de la partie parmi ceux donnés, -1 si aucun n'a un poids positif
+    synchronized int owner(String fileName, int partIndex, Collection<Integer> serverIds)
+    {
+        List<Integer> ranking = rank(fileName, partIndex, serverIds);
+        return ranking.isEmpty() ? -1 : ranking.get(0);
+    }
+
+    // Hachage de rendez-vous pondéré : chaque serveur tire un score -poids / ln(u), u
+    // uniforme dans ]0, 1[ dérivé de (fichier, partie, serveur) ; classement par score
+    // décroissant. Retirer un serveur ne change le premier que pour les parties qu'il
+    // gagnait. Les serveurs de poids nul (ou négatif) ne reçoivent rien.
+    private List<Integer> rank(String fileName, int partIndex, Collection<Integer> serverIds)
+    {
+        Map<Integer, Double> scores = new HashMap<>();
+        for (int serverId : serverIds)
+        {
+            double weight = weight(serverId);
+            if (weight <= 0) {
+                continue;
+            }
+            long hash = ShardMap.mix(((long) fileName.hashCode() << 32) ^ (partIndex * 0x9E3779B97F4A7C15L) ^ (serverId * 0xC2B2AE3D27D4EB4FL));
+            double uniform = ((hash >>> 11) + 0.5) / (double) (1L << 53);
+            scores.put(serverId, -weight / Math.log(uniform));
+        }
+        List<Integer> ranking = new ArrayList<>(scores.keySet());
+        ranking.sort((a, b) -> Double.compare(scores.get(b), scores.get(a)));
+        return ranking;
+    }
+
+    private void record(Decision decision)
+    {
+        history.addLast(decision);
+        while (history.size() > HISTORY_SIZE) {
+            history.removeFirst();
+        }
+        ServeurPrincipal.log.sample("Placement : %s", decision);
+    }
+
+    // Dernières décisions, éventuellement limitées à un fichier (fileName vide : toutes)
+    synchronized List<Decision> decisions(String fileName)
+    {
+        List<Decision> decisions = new ArrayList<>();
+        for (Decision decision : history) {
+            if (fileName.isEmpty() || decision.fileName.equals(fileName)) {
+                decisions.add(decision);
+            }
+        }
+        return decisions;
+    }
+}
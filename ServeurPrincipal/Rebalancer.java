@@ -0,0 +1,325 @@
+package ServeurPrincipal;
+
+import Stockage.GroupCommit;
+
+import java.io.*;
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Rééquilibrage en tâche de fond après un changement des membres (commande RELOAD,
+// ou configuration modifiée pendant l'arrêt du serveur principal).
+//
+// Chaque partie (nom du fichier, numéro) a un serveur préféré parmi les membres,
+// choisi par hachage de rendez-vous pondéré (PlacementEngine.owner, le classement qui
+// place aussi les nouveaux envois). Seules deux
+// sortes de parties sont déplacées :
+//  - celles d'un serveur retiré, vers leur serveur préféré parmi les membres restants ;
+//  - celles dont le serveur préféré est un serveur nouvellement ajouté.
+// Un ajout ne déplace donc qu'environ 1/(n+1) des parties, toutes vers le nouveau
+// serveur, et aucune partie ne change de place entre les anciens membres.
+//
+// Une partie est recopiée depuis la copie complète du serveur principal si elle
+// existe, sinon depuis son ancien serveur (GET), avec un débit limité. Le manifeste
+// est mis à jour puis l'ancienne copie est supprimée (RMPART) après un délai, pour ne
+// pas casser les lectures directes (PGET) qui utilisent encore l'ancienne répartition.
+class Rebalancer
+{
+    private final String directory;
+    private final GroupCommit groupCommit;
+    private final HealthMonitor healthMonitor;
+    private final PlacementEngine placementEngine;
+    private final BandwidthLimiter limiter;
+    private final long deleteDelay;     // ms
+    private final long retryInterval;   // ms
+
+    // Changements pas encore entièrement traités
+    private final Set<Integer> pendingAdded = new TreeSet<>();
+    private final Set<Integer> pendingRemoved = new TreeSet<>();
+    private boolean passScheduled;
+
+    private final AtomicLong movedParts = new AtomicLong();
+    private final AtomicLong movedBytes = new AtomicLong();
+    private final AtomicLong failedMoves = new AtomicLong();
+    private volatile int deferredMoves;
+    private volatile long lastPass;
+    private ScheduledExecutorService executor;
+
+    Rebalancer(String directory, GroupCommit groupCommit, HealthMonitor healthMonitor, PlacementEngine placementEngine,
+               long bytesPerSecond, long deleteDelay, long retryInterval)
+    {
+        this.directory = directory;
+        this.groupCommit = groupCommit;
+        this.healthMonitor = healthMonitor;
+        this.placementEngine = placementEngine;
+        this.limiter = new BandwidthLimiter(bytesPerSecond);
+        this.deleteDelay = deleteDelay;
+        this.retryInterval = retryInterval;
+    }
+
+    synchronized void start()
+    {
+        if (executor != null) {
+            return;
+        }
+        // Un seul thread : les déplacements passent l'un après l'autre
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "reequilibrage");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+        executor.execute(this::detectChangesAtStartup);
+    }
+
+    // Sans historique des membres, un changement fait pendant l'arrêt se déduit des
+    // manifestes : un serveur qui porte des parties sans être membre a été retiré, un
+    // membre qui n'en porte aucune vient d'être ajouté
+    private void detectChangesAtStartup()
+    {
+        List<String> fileNames = FileManifest.listFileNames(directory);
+        if (fileNames.isEmpty()) {
+            return;
+        }
+
+        Set<Integer> used = new TreeSet<>();
+        for (String fileName : fileNames) {
+            try {
+                FileManifest manifest = FileManifest.load(directory, fileName);
+                if (manifest != null) {
+                    for (FileManifest.Part part : manifest.parts) {
+                        used.add(part.serverId);
+                    }
+                }
+            } catch (IOException e) {
+                ServeurPrincipal.log.error("Rééquilibrage : %s", e.getMessage());
+            }
+        }
+
+        List<Integer> members = healthMonitor.members();
+        Set<Integer> added = new TreeSet<>(members);
+        added.removeAll(used);
+        Set<Integer> removed = new TreeSet<>(used);
+        removed.removeAll(members);
+        if (!added.isEmpty() || !removed.isEmpty()) {
+            membershipChanged(added, removed);
+        }
+    }
+
+    // Demande un passage de rééquilibrage pour ces serveurs ajoutés et retirés
+    synchronized void membershipChanged(Set<Integer> added, Set<Integer> removed)
+    {
+        pendingAdded.addAll(added);
+        pendingAdded.removeAll(removed);
+        pendingRemoved.addAll(removed);
+        pendingRemoved.removeAll(added);
+        ServeurPrincipal.log.info("Rééquilibrage demandé : ajoutés %s, retirés %s.", added, removed);
+        schedulePass(0);
+    }
+
+    private synchronized void schedulePass(long delay)
+    {
+        if (executor != null && !passScheduled) {
+            passScheduled = true;
+            executor.schedule(this::pass, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void pass()
+    {
+        Set<Integer> added;
+        Set<Integer> removed;
+        synchronized (this) {
+            passScheduled = false;
+            added = new TreeSet<>(pendingAdded);
+            removed = new TreeSet<>(pendingRemoved);
+            pendingAdded.clear();
+            pendingRemoved.clear();
+        }
+
+        // Un serveur ajouté reste SUSPECT jusqu'au battement suivant : l'interroger tout de
+        // suite plutôt que de reporter tous ses déplacements d'un intervalle complet
+        for (int serverId : added) {
+            if (healthMonitor.state(serverId) != HealthMonitor.State.UP) {
+                healthMonitor.probe(serverId);
+            }
+        }
+
+        List<Integer> members = healthMonitor.members();
+        int deferred = 0;
+        for (String fileName : FileManifest.listFileNames(directory))
+        {
+            try {
+                FileManifest manifest = FileManifest.load(directory, fileName);
+                if (manifest == null) {
+                    continue; // Supprimé entre-temps
+                }
+                for (int i = 0; i < manifest.parts.size(); i++)
+                {
+                    FileManifest.Part part = manifest.parts.get(i);
+                    int target = targetFor(fileName, part, members, added);
+                    if (target == -1) {
+                        continue;
+                    }
+                    if (healthMonitor.state(target) != HealthMonitor.State.UP) {
+                        deferred++; // Réessayé au prochain passage
+                        continue;
+                    }
+                    Outcome outcome = move(manifest, part, target);
+                    if (outcome == Outcome.STALE) {
+                        // Les parties suivantes seraient copiées d'après un manifeste périmé et
+                        // jamais référencées : le fichier est repris au prochain passage
+                        if (FileManifest.load(directory, fileName) != null) {
+                            deferred++;
+                        }
+                        break;
+                    }
+                    if (outcome == Outcome.FAILED) {
+                        deferred++;
+                    }
+                }
+            } catch (IOException e) {
+                ServeurPrincipal.log.error("Rééquilibrage de %s : %s", fileName, e.getMessage());
+            }
+        }
+
+        deferredMoves = deferred;
+        lastPass = System.currentTimeMillis();
+        if (deferred > 0) {
+            synchronized (this) {
+                added.removeAll(pendingRemoved);
+                pendingAdded.addAll(added);
+                pendingRemoved.addAll(removed);
+            }
+            schedulePass(retryInterval);
+        }
+        ServeurPrincipal.log.info("Rééquilibrage terminé : %d parties déplacées au total, %d en attente.", movedParts.get(), deferred);
+    }
+
+    // Serveur vers lequel déplacer la partie, -1 si elle reste en place
+    private int targetFor(String fileName, FileManifest.Part part, List<Integer> members, Set<Integer> added)
+    {
+        int owner = placementEngine.owner(fileName, part.index, members);
+        if (owner == -1 || owner == part.serverId) {
+            return -1;
+        }
+        if (!members.contains(part.serverId)) {
+            return owner; // Serveur retiré
+        }
+        return added.contains(owner) ? owner : -1;
+    }
+
+    // Résultat d'un déplacement ; STALE : le manifeste en mémoire ne correspond plus au disque
+    private enum Outcome { MOVED, FAILED, STALE }
+
+    private Outcome move(FileManifest manifest, FileManifest.Part part, int target)
+    {
+        String partName = manifest.partName(part);
+        int source = part.serverId;
+        long checksum;
+        try {
+            checksum = copy(manifest, part, target);
+        } catch (IOException e) {
+            failedMoves.incrementAndGet();
+            ServeurPrincipal.log.error("Rééquilibrage : copie de %s du serveur %d vers le serveur %d impossible : %s",
+                                       partName, source, target, e.getMessage());
+            return Outcome.FAILED;
+        }
+
+        try {
+            if (part.checksum >= 0 && checksum != part.checksum) {
+                failedMoves.incrementAndGet();
+                ServeurPrincipal.log.error("Rééquilibrage : CRC de %s différent après copie, déplacement annulé (la réparation s'en chargera).", partName);
+                ServeurPrincipal.removeUnreferencedPart(manifest.fileName, partName, target);
+                return Outcome.FAILED;
+            }
+            manifest.movePart(part.index, target);
+            manifest.parts.get(part.index - 1).checksum = checksum;
+            if (!manifest.saveIfUnchanged(directory, groupCommit)) {
+                // Fichier supprimé ou modifié (réparation, nouvel envoi) pendant la copie :
+                // réessayé au prochain passage à partir du nouveau manifeste
+                ServeurPrincipal.log.info("Rééquilibrage : %s modifié pendant la copie de %s, déplacement abandonné.", manifest.fileName, partName);
+                ServeurPrincipal.removeUnreferencedPart(manifest.fileName, partName, target);
+                return Outcome.STALE;
+            }
+        } catch (IOException e) {
+            failedMoves.incrementAndGet();
+            ServeurPrincipal.log.error("Rééquilibrage : manifeste de %s non enregistré : %s", manifest.fileName, e.getMessage());
+            return Outcome.STALE;
+        }
+
+        movedParts.incrementAndGet();
+        movedBytes.addAndGet(part.length);
+        ServeurPrincipal.metrics.counter("rebalance_parts_moved_total").increment();
+        ServeurPrincipal.metrics.meter("rebalance_bytes").mark(part.length);
+        ServeurPrincipal.log.sample("Rééquilibrage : %s déplacée du serveur %d vers le serveur %d.", partName, source, target);
+        removeLater(manifest.fileName, partName, source);
+        return Outcome.MOVED;
+    }
+
+    // Supprime une copie après deleteDelay (les clients qui ont lu l'ancienne répartition
+    // finissent leur GET), sauf si le manifeste du fichier l'utilise encore à ce moment
+    void removeLater(String fileName, String partName, int serverId)
+    {
+        executor.schedule(() -> ServeurPrincipal.removeUnreferencedPart(fileName, partName, serverId), deleteDelay, TimeUnit.MILLISECONDS);
+    }
+
+    // Copie la partie sur le serveur cible et retourne son CRC32
+    private long copy(FileManifest manifest, FileManifest.Part part, int target) throws IOException
+    {
+        String partName = manifest.partName(part);
+        File fullCopy = new File(directory, "received_" + manifest.fileName);
+        if (fullCopy.isFile() && fullCopy.length() == manifest.fileSize) {
+            try (FileInputStream fileInputStream = new FileInputStream(fullCopy)) {
+                fileInputStream.getChannel().position(part.offset);
+                return ServeurPrincipal.sendFileToSecondaryServer(fileInputStream, partName, part.length, target, limiter);
+            }
+        }
+
+        // Envoi direct (PPUT) : seule l'ancienne copie existe
+        long start = System.nanoTime();
+        try (Socket secondarySocket = healthMonitor.connect(part.serverId);
+            DataOutputStream secondaryOutputStream = new DataOutputStream(secondarySocket.getOutputStream());
+            DataInputStream secondaryInputStream = new DataInputStream(new BufferedInputStream(secondarySocket.getInputStream()))) {
+
+            secondaryOutputStream.writeUTF("GET");
+            secondaryOutputStream.writeUTF(partName);
+            secondaryOutputStream.flush();
+            long size = secondaryInputStream.readLong();
+            if (size != part.length) {
+                throw new IOException("taille " + size + " au lieu de " + part.length + " sur le serveur secondaire " + part.serverId);
+            }
+            long checksum = ServeurPrincipal.sendFileToSecondaryServer(secondaryInputStream, partName, part.length, target, limiter);
+            ServeurPrincipal.recordSecondary(part.serverId, "GET", start, 0, part.length, false);
+            return checksum;
+        }
+    }
+
+    int deferredMoves()
+    {
+        return deferredMoves;
+    }
+
+    // État du rééquilibrage pour la commande REBALANCE
+    synchronized List<String> describe()
+    {
+        List<String> lines = new ArrayList<>();
+        List<Integer> members = healthMonitor.members();
+        StringBuilder memberWeights = new StringBuilder();
+        for (int serverId : members) {
+            memberWeights.append(memberWeights.length() == 0 ? "" : ", ").append(serverId).append(" (poids ")
+                         .append(placementEngine.weight(serverId)).append(')');
+        }
+        lines.add("Membres : " + memberWeights);
+        Set<Integer> retired = healthMonitor.serverIds();
+        retired.removeAll(members);
+        lines.add("Serveurs retirés : " + retired);
+        lines.add("Parties déplacées : " + movedParts.get() + " (" + movedBytes.get() + " octets), échecs : " + failedMoves.get()
+                  + ", en attente : " + deferredMoves);
+        lines.add("Changements à traiter : ajoutés " + pendingAdded + ", retirés " + pendingRemoved
+                  + (passScheduled ? " (passage prévu)" : ""));
+        lines.add("Dernier passage : " + (lastPass == 0 ? "jamais" : String.format("%tFT%<tT", lastPass)));
+        return lines;
+    }
+}
@@ -0,0 +1,283 @@
+package ServeurPrincipal;
+
+import Stockage.GroupCommit;
+import Stockage.Transfers;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+
+// Réparation en tâche de fond des parties perdues ou corrompues. À chaque parcours
+// (scanInterval), chaque manifeste est comparé à ce que les serveurs secondaires
+// contiennent (STAT, qui ne lit pas les données). La vérification des CRC (CHECKSUM),
+// qui relit chaque octet stocké, se fait dans un parcours séparé beaucoup plus espacé
+// (scrubInterval) et limité en débit ; une partie suspecte y est signalée au thread
+// de réparation. Une partie absente, de mauvaise taille, de CRC différent ou placée sur
+// un serveur DOWN est reconstruite à partir de la copie complète gardée par le serveur
+// principal (received_<nom>), sur le même serveur s'il est UP, sinon sur un autre
+// serveur UP.
+// Les octets de la copie complète doivent avoir le CRC enregistré pour la partie : sinon
+// (fichier remplacé depuis) rien n'est envoyé et le fichier est signalé irrécupérable ;
+// une réparation ne modifie jamais le CRC enregistré.
+// Le débit de réparation est limité pour ne pas pénaliser les PUT/GET des clients.
+class RepairWorker
+{
+    private final String directory;
+    private final GroupCommit groupCommit;
+    private final HealthMonitor healthMonitor;
+    private final PlacementEngine placementEngine;
+    private final BandwidthLimiter limiter;
+    private final BandwidthLimiter scrubLimiter;
+    private final long scanInterval;        // ms
+    private final long scrubInterval;       // ms
+    private final boolean verifyChecksums;
+    // Fichiers en attente de réparation, avec vérification des CRC ou non
+    private final Map<String, Boolean> queued = new ConcurrentHashMap<>();
+    // Fichiers dont une partie ne peut pas être reconstruite fidèlement
+    private final Set<String> unrecoverable = ConcurrentHashMap.newKeySet();
+    private ScheduledExecutorService executor;
+    private ScheduledExecutorService scrubber;
+
+    RepairWorker(String directory, GroupCommit groupCommit, HealthMonitor healthMonitor, PlacementEngine placementEngine,
+                 long bytesPerSecond, long scanInterval, boolean verifyChecksums,
+                 long scrubBytesPerSecond, long scrubInterval)
+    {
+        this.directory = directory;
+        this.groupCommit = groupCommit;
+        this.healthMonitor = healthMonitor;
+        this.placementEngine = placementEngine;
+        this.limiter = new BandwidthLimiter(bytesPerSecond);
+        this.scrubLimiter = new BandwidthLimiter(scrubBytesPerSecond);
+        this.scanInterval = scanInterval;
+        this.scrubInterval = scrubInterval;
+        this.verifyChecksums = verifyChecksums;
+    }
+
+    synchronized void start()
+    {
+        if (executor != null) {
+            return;
+        }
+        // Un seul thread : les réparations passent l'une après l'autre
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "reparation-parties");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::scan, scanInterval, scanInterval, TimeUnit.MILLISECONDS);
+
+        // Vérification des CRC dans son propre thread : son débit limité ne doit pas
+        // retarder les réparations
+        if (verifyChecksums) {
+            scrubber = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "verification-parties");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            });
+            scrubber.scheduleWithFixedDelay(this::scrub, scrubInterval, scrubInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Demande la vérification d'un fichier sans attendre le prochain parcours complet
+    void requestRepair(String fileName)
+    {
+        requestRepair(fileName, false);
+    }
+
+    // verifyChecksum : comparer aussi le CRC de chaque partie (partie suspecte)
+    private void requestRepair(String fileName, boolean verifyChecksum)
+    {
+        if (executor == null) {
+            return;
+        }
+        // Une demande encore en attente devient seulement plus stricte
+        boolean[] added = new boolean[1];
+        queued.compute(fileName, (name, pending) -> {
+            added[0] = pending == null;
+            return pending == null ? verifyChecksum : pending || verifyChecksum;
+        });
+        if (added[0]) {
+            executor.execute(() -> repairFile(fileName, queued.remove(fileName)));
+        }
+    }
+
+    private void scan()
+    {
+        for (String fileName : FileManifest.listFileNames(directory)) {
+            repairFile(fileName, false);
+        }
+    }
+
+    // Parcours de vérification des CRC : chaque partie est relue par son serveur secondaire,
+    // au débit de scrubLimiter ; une partie différente est confiée au thread de réparation
+    private void scrub()
+    {
+        for (String fileName : FileManifest.listFileNames(directory))
+        {
+            try {
+                FileManifest manifest = FileManifest.load(directory, fileName);
+                if (manifest == null) {
+                    continue;
+                }
+                for (FileManifest.Part part : manifest.parts)
+                {
+                    if (part.checksum < 0 || healthMonitor.state(part.serverId) != HealthMonitor.State.UP) {
+                        continue;
+                    }
+                    for (long remaining = part.length; remaining > 0; remaining -= 1 << 20) {
+                        scrubLimiter.acquire((int) Math.min(remaining, 1 << 20));
+                    }
+                    long storedChecksum = ServeurPrincipal.queryPart("CHECKSUM", part.serverId, manifest.partName(part));
+                    if (storedChecksum != part.checksum) {
+                        requestRepair(fileName, true);
+                        break;
+                    }
+                }
+            } catch (InterruptedIOException e) {
+                return;
+            } catch (IOException e) {
+                ServeurPrincipal.log.error("Erreur lors de la vérification de %s : %s", fileName, e.getMessage());
+            }
+        }
+    }
+
+    private void repairFile(String fileName, boolean verifyChecksum)
+    {
+        try {
+            FileManifest manifest = FileManifest.load(directory, fileName);
+            if (manifest == null) {
+                return; // Supprimé entre-temps
+            }
+
+            List<FileManifest.Part> before = new ArrayList<>(manifest.parts);
+            boolean changed = false;
+            boolean damaged = false;
+            for (int i = 0; i < manifest.parts.size(); i++)
+            {
+                FileManifest.Part part = manifest.parts.get(i);
+                String problem = checkPart(manifest, part, verifyChecksum);
+                if (problem != null) {
+                    ServeurPrincipal.log.error("Réparation : partie %s de %s sur le serveur secondaire %s %s.", part.index, fileName, part.serverId, problem);
+                    damaged = true;
+                    changed |= rebuild(manifest, part);
+                }
+            }
+            if (!damaged) {
+                unrecoverable.remove(fileName);
+            }
+
+            if (changed && !manifest.saveIfUnchanged(directory, groupCommit)) {
+                // Le prochain passage repart du manifeste actuel ; les copies reconstruites
+                // ici ne sont plus référencées, sauf si un autre déplacement les a reprises
+                ServeurPrincipal.log.info("Réparation : %s a été modifié ou supprimé pendant la réparation.", fileName);
+                for (FileManifest.Part part : manifest.parts) {
+                    if (part != before.get(part.index - 1)) {
+                        ServeurPrincipal.removeUnreferencedPart(fileName, manifest.partName(part), part.serverId);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            ServeurPrincipal.log.error("Erreur lors de la réparation de %s : %s", fileName, e.getMessage());
+        }
+    }
+
+    // Retourne la raison pour laquelle la partie doit être reconstruite, ou null
+    private String checkPart(FileManifest manifest, FileManifest.Part part, boolean verifyChecksum)
+    {
+        HealthMonitor.State state = healthMonitor.state(part.serverId);
+        if (state == HealthMonitor.State.DOWN) {
+            return "est hors service";
+        }
+        if (state != HealthMonitor.State.UP) {
+            return null; // Serveur SUSPECT : on attend que la surveillance tranche
+        }
+
+        String partName = manifest.partName(part);
+        long storedSize = ServeurPrincipal.queryPart("STAT", part.serverId, partName);
+        if (storedSize == -1) {
+            return "est introuvable";
+        }
+        if (storedSize != part.length) {
+            return "a une taille de " + storedSize + " octets au lieu de " + part.length;
+        }
+        if (verifyChecksum && part.checksum >= 0) {
+            long storedChecksum = ServeurPrincipal.queryPart("CHECKSUM", part.serverId, partName);
+            if (storedChecksum != part.checksum) {
+                return "est corrompue (CRC " + storedChecksum + " au lieu de " + part.checksum + ")";
+            }
+        }
+        return null;
+    }
+
+    private boolean rebuild(FileManifest manifest, FileManifest.Part part)
+    {
+        File source = new File(directory, "received_" + manifest.fileName);
+        if (!source.isFile() || source.length() != manifest.fileSize) {
+            ServeurPrincipal.log.error("Réparation impossible : aucune copie complète de %s sur le serveur principal.", manifest.fileName);
+            return false;
+        }
+
+        int target = part.serverId;
+        if (healthMonitor.state(target) != HealthMonitor.State.UP) {
+            target = placementEngine.pickServer(manifest.fileName, part.index, part.length, healthMonitor.upServers());
+            if (target == -1) {
+                ServeurPrincipal.log.error("Réparation impossible : aucun serveur secondaire disponible pour %s.", manifest.partName(part));
+                return false;
+            }
+        }
+
+        String partName = manifest.partName(part);
+        try {
+            if (part.checksum >= 0) {
+                long sourceChecksum = checksum(source, part.offset, part.length);
+                if (sourceChecksum != part.checksum) {
+                    if (unrecoverable.add(manifest.fileName)) {
+                        ServeurPrincipal.log.error("Réparation impossible : la copie principale de %s ne correspond plus à la partie %s (CRC %s au lieu de %s), fichier irrécupérable.",
+                                                   manifest.fileName, part.index, sourceChecksum, part.checksum);
+                    }
+                    return false;
+                }
+            }
+
+            long checksum;
+            try (FileInputStream fileInputStream = new FileInputStream(source)) {
+                fileInputStream.getChannel().position(part.offset);
+                checksum = ServeurPrincipal.sendFileToSecondaryServer(fileInputStream, partName, part.length, target, limiter);
+            }
+            if (part.checksum >= 0 && checksum != part.checksum) {
+                // Copie principale remplacée pendant l'envoi
+                ServeurPrincipal.log.error("Réparation : %s modifiée pendant l'envoi, manifeste inchangé.", partName);
+                return false;
+            }
+            manifest.movePart(part.index, target);
+            ServeurPrincipal.log.info("Réparation : partie %s de %s reconstruite sur le serveur secondaire %s.", part.index, manifest.fileName, target);
+            return true;
+        } catch (IOException e) {
+            ServeurPrincipal.log.error("Erreur lors de la reconstruction de %s : %s", partName, e.getMessage());
+            return false;
+        }
+    }
+
+    // CRC32 des length octets de file à partir de offset
+    private static long checksum(File file, long offset, long length) throws IOException
+    {
+        CRC32 checksum = new CRC32();
+        try (FileInputStream fileInputStream = new FileInputStream(file)) {
+            fileInputStream.getChannel().position(offset);
+            long read = Transfers.copyBytes(fileInputStream, OutputStream.nullOutputStream(), length, new byte[64 * 1024], checksum);
+            if (read < length) {
+                throw new EOFException(file.getName() + " : " + read + " octets lus sur " + length);
+            }
+        }
+        return checksum.getValue();
+    }
+
+    // Nombre de fichiers signalés irrécupérables (mesures)
+    int unrecoverableFiles()
+    {
+        return unrecoverable.size();
+    }
+}
@@ -1,58 +1,244 @@
 package ServeurPrincipal;
 
+import Supervision.AsyncLog;
+import Supervision.CountingInputStream;
+import Supervision.CountingOutputStream;
+import Supervision.Metrics;
+import Stockage.GroupCommit;
+import Stockage.Transfers;
+
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
 
 public class ServeurPrincipal 
 {
+    // Numéro de ce serveur principal et domaine de chacun (hachage des noms de fichiers)
+    private static int principalId;
+    private static ShardMap shardMap;
+    private static int forwardConnectTimeout;
+
+    // Commandes dont le premier argument est un nom de fichier, routées selon son domaine
+    private static final Set<String> FILE_COMMANDS = Set.of("PUT", "GET", "RM", "LAYOUT", "PLAN", "COMMIT", "PLACEMENT");
+
     private static String serverAddress;
     private static String serverPrincipalDirectory;
     private static int serverPort;
-    private static List<String> secondaryServerAddresses = new ArrayList<>();
-    private static List<Integer> secondaryServerPorts = new ArrayList<>();
-    private static List<String> secondaryServerDirectories = new ArrayList<>();
+    private static int transferBufferSize;
+    // Indexées par numéro de serveur - 1 ; complétées par la commande RELOAD
+    private static List<String> secondaryServerAddresses = new CopyOnWriteArrayList<>();
+    private static List<Integer> secondaryServerPorts = new CopyOnWriteArrayList<>();
+    private static List<String> secondaryServerDirectories = new CopyOnWriteArrayList<>();
+
+    // Taille et destination des parties selon l'état des serveurs secondaires
+    private static final PlacementEngine placementEngine = new PlacementEngine();
+
+    // État des serveurs secondaires (battements en tâche de fond) et connexions avec délais
+    private static HealthMonitor healthMonitor;
+
+    // Reconstruction en tâche de fond des parties perdues ou corrompues
+    private static RepairWorker repairWorker;
+
+    // Déplacement des parties après l'ajout ou le retrait de serveurs secondaires
+    private static Rebalancer rebalancer;
+
+    // Partage du débit vers les serveurs secondaires entre les transferts des clients
+    private static TransferScheduler transferScheduler;
+
+    // Envois directs (PLAN) en attente de leur COMMIT, par nom de fichier ; un plan resté
+    // sans COMMIT pendant pendingUploadTimeout millisecondes est abandonné
+    private static final Map<String, PendingUpload> pendingUploads = new ConcurrentHashMap<>();
+    private static long pendingUploadTimeout;
+
+    private static class PendingUpload
+    {
+        final FileManifest plan;
+        final long expires;
+        boolean closed;   // Confirmé ou annulé, sous le verrou de l'envoi
+
+        PendingUpload(FileManifest plan, long expires)
+        {
+            this.plan = plan;
+            this.expires = expires;
+        }
+    }
+
+    // Mesures par commande et par serveur secondaire (commande STATS)
+    static final Metrics metrics = new Metrics();
+    private static final AtomicInteger activeConnections = new AtomicInteger();
+
+    // Journal asynchrone ; les messages de chaque requête sont échantillonnés
+    static AsyncLog log;
 
-    static {
+    // Synchronisations sur disque regroupées (fichiers reçus et manifestes)
+    private static GroupCommit groupCommit;
+
+    // Lecture de la configuration de ce serveur principal (principalId) à partir du fichier config.properties
+    private static void loadConfiguration()
+    {
         try (InputStream input = new FileInputStream("config.properties")) {
             Properties prop = new Properties();
             prop.load(input);
 
-            // Charger la configuration du serveur principal
-            serverAddress = prop.getProperty("server.principal.address", "localhost");
-            serverPort = Integer.parseInt(prop.getProperty("server.principal.port.base", "12345"));
-            serverPrincipalDirectory = prop.getProperty("server.principal.directory", "ServeurPrincipal");
+            log = new AsyncLog("journal-principal",
+                               Integer.parseInt(prop.getProperty("server.log.queue.size", "10000")),
+                               Integer.parseInt(prop.getProperty("server.log.sample.every", "100")));
 
-            // Charger la configuration des serveurs secondaires
-            int numberOfSecondaryServers = Integer.parseInt(prop.getProperty("server.secondary.count", "2"));
-            for (int i = 1; i <= numberOfSecondaryServers; i++) 
-            {
-                String secondaryAddress = prop.getProperty("server.secondary" + i + ".address", "localhost");
-                int secondaryPort = Integer.parseInt(prop.getProperty("server.secondary" + i + ".port.base", "12346"));
-                String secondaryDirectory = prop.getProperty("server.secondary" + i + ".directory", "ServeurSecondaire");
+            // Charger la configuration du serveur principal (server.principalN.*, ou
+            // server.principal.* pour le premier)
+            shardMap = ShardMap.load(prop);
+            if (principalId < 1 || principalId > shardMap.size()) {
+                throw new IOException("serveur principal " + principalId + " absent (server.principal.count=" + shardMap.size() + ")");
+            }
+            ShardMap.Primary self = shardMap.get(principalId);
+            serverAddress = self.address;
+            serverPort = self.port;
+            serverPrincipalDirectory = self.directory;
+            forwardConnectTimeout = Integer.parseInt(prop.getProperty("server.principal.forward.connect.timeout", "1000"));
 
-                secondaryServerAddresses.add(secondaryAddress);
-                secondaryServerPorts.add(secondaryPort+i);
-                secondaryServerDirectories.add(secondaryDirectory);
+            // Durabilité (délai de regroupement en millisecondes, nombre maximal par lot)
+            groupCommit = new GroupCommit("synchronisation-principal",
+                                          Long.parseLong(prop.getProperty("server.commit.delay", "2")),
+                                          Integer.parseInt(prop.getProperty("server.commit.batch", "256")),
+                                          Boolean.parseBoolean(prop.getProperty("server.commit.fsync", "true")));
+            int leftovers = GroupCommit.removeTemporaryFiles(new File(serverPrincipalDirectory))
+                          + GroupCommit.removeTemporaryFiles(new File(serverPrincipalDirectory, FileManifest.MANIFEST_DIRECTORY));
+            if (leftovers > 0) {
+                log.info("%d fichier(s) temporaire(s) d'envois interrompus supprimé(s).", leftovers);
+            }
+            transferBufferSize = Integer.parseInt(prop.getProperty("server.transfer.buffer.size", "1024"));
+            pendingUploadTimeout = Long.parseLong(prop.getProperty("server.upload.pending.timeout", "600000"));
 
+            // Surveillance des serveurs secondaires (délais en millisecondes)
+            healthMonitor = new HealthMonitor(placementEngine,
+                                              Long.parseLong(prop.getProperty("server.secondary.heartbeat.interval", "2000")),
+                                              Integer.parseInt(prop.getProperty("server.secondary.heartbeat.timeout", "1000")),
+                                              Integer.parseInt(prop.getProperty("server.secondary.heartbeat.down.after", "3")));
+
+            // Rééquilibrage (débit en octets/s, 0 : illimité ; délais en millisecondes)
+            rebalancer = new Rebalancer(serverPrincipalDirectory, groupCommit, healthMonitor, placementEngine,
+                                        Long.parseLong(prop.getProperty("server.rebalance.bandwidth", "10485760")),
+                                        Long.parseLong(prop.getProperty("server.rebalance.delete.delay", "30000")),
+                                        Long.parseLong(prop.getProperty("server.rebalance.retry.interval", "30000")));
+
+            // Ordonnancement des transferts (débits en octets/s, 0 : illimité ; taille en octets
+            // en dessous de laquelle un transfert est prioritaire)
+            transferScheduler = new TransferScheduler(Long.parseLong(prop.getProperty("server.qos.bandwidth", "0")),
+                                                      Long.parseLong(prop.getProperty("server.qos.small.size", "1048576")),
+                                                      Long.parseLong(prop.getProperty("server.qos.client.bandwidth", "0")));
+            for (String key : prop.stringPropertyNames()) {
+                if (key.startsWith("server.qos.command.") && key.endsWith(".bandwidth")) {
+                    String qosCommand = key.substring("server.qos.command.".length(), key.length() - ".bandwidth".length());
+                    transferScheduler.setCommandLimit(qosCommand.toUpperCase(), Long.parseLong(prop.getProperty(key)));
+                }
             }
+
+            // Charger la configuration des serveurs secondaires
+            loadSecondaryServers(prop, new TreeSet<>(), new TreeSet<>());
             System.out.println("Nombre de serveurs secondaires chargés : " + secondaryServerAddresses.size());
-        } catch (IOException ex) {
+
+            // Réparation des parties et vérification des CRC (intervalles en millisecondes,
+            // débits en octets/s, 0 : illimité)
+            repairWorker = new RepairWorker(serverPrincipalDirectory, groupCommit, healthMonitor, placementEngine,
+                                            Long.parseLong(prop.getProperty("server.repair.bandwidth", "10485760")),
+                                            Long.parseLong(prop.getProperty("server.repair.interval", "60000")),
+                                            Boolean.parseBoolean(prop.getProperty("server.repair.verify.checksums", "true")),
+                                            Long.parseLong(prop.getProperty("server.repair.scrub.bandwidth", "4194304")),
+                                            Long.parseLong(prop.getProperty("server.repair.scrub.interval", "86400000")));
+
+            metrics.gauge("connections_active", activeConnections::get);
+            metrics.gauge("pending_uploads", pendingUploads::size);
+            metrics.gauge("secondaries_up", () -> healthMonitor.upServers().size());
+            metrics.gauge("log_queue_depth", log::pending);
+            metrics.gauge("log_dropped_total", log::dropped);
+            metrics.gauge("rebalance_deferred", rebalancer::deferredMoves);
+            metrics.gauge("repair_unrecoverable_files", repairWorker::unrecoverableFiles);
+            metrics.gauge("commit_batches_total", groupCommit::batches);
+            metrics.gauge("commit_requests_total", groupCommit::requests);
+            metrics.gauge("commit_syncs_total", groupCommit::syncs);
+            metrics.gauge("commit_pending", groupCommit::pending);
+        } catch (IOException | IllegalArgumentException ex) {
             System.err.println("Erreur lors du chargement de la configuration : " + ex.getMessage());
             System.exit(1);
         }
     }
 
+    // Lecture (ou relecture, commande RELOAD) des serveurs secondaires. Les numéros de
+    // serveurs ajoutés ou remis en service sont placés dans added, ceux retirés
+    // (server.secondaryN.decommissioned=true, ou numéro supérieur à server.secondary.count)
+    // dans removed. Retourne une ligne par changement.
+    private static synchronized List<String> loadSecondaryServers(Properties prop, Set<Integer> added, Set<Integer> removed)
+    {
+        List<String> changes = new ArrayList<>();
+        int connectTimeout = Integer.parseInt(prop.getProperty("server.secondary.connect.timeout", "1000"));
+        int readTimeout = Integer.parseInt(prop.getProperty("server.secondary.read.timeout", "30000"));
+
+        int numberOfSecondaryServers = Integer.parseInt(prop.getProperty("server.secondary.count", "2"));
+        for (int i = 1; i <= numberOfSecondaryServers; i++) 
+        {
+            String secondaryAddress = prop.getProperty("server.secondary" + i + ".address", "localhost");
+            int secondaryPort = Integer.parseInt(prop.getProperty("server.secondary" + i + ".port.base", "12346"));
+            String secondaryDirectory = prop.getProperty("server.secondary" + i + ".directory", "ServeurSecondaire");
+
+            if (i > secondaryServerAddresses.size()) {
+                secondaryServerAddresses.add(secondaryAddress);
+                secondaryServerPorts.add(secondaryPort+i);
+                secondaryServerDirectories.add(secondaryDirectory);
+            } else {
+                secondaryServerAddresses.set(i - 1, secondaryAddress);
+                secondaryServerPorts.set(i - 1, secondaryPort + i);
+                secondaryServerDirectories.set(i - 1, secondaryDirectory);
+            }
+
+            boolean wasMember = !healthMonitor.isDecommissioned(i);
+            if (healthMonitor.register(i, secondaryAddress, secondaryPort + i,
+                                       Integer.parseInt(prop.getProperty("server.secondary" + i + ".connect.timeout", Integer.toString(connectTimeout))),
+                                       Integer.parseInt(prop.getProperty("server.secondary" + i + ".read.timeout", Integer.toString(readTimeout))))) {
+                changes.add("Serveur secondaire " + i + " ajouté (" + secondaryAddress + ":" + (secondaryPort + i) + ")");
+            }
+            placementEngine.setWeight(i, Double.parseDouble(prop.getProperty("server.secondary" + i + ".weight", "1")));
+
+            boolean decommissioned = Boolean.parseBoolean(prop.getProperty("server.secondary" + i + ".decommissioned", "false"));
+            healthMonitor.setDecommissioned(i, decommissioned);
+            if (decommissioned && wasMember) {
+                removed.add(i);
+                changes.add("Serveur secondaire " + i + " retiré");
+            } else if (!decommissioned && !wasMember) {
+                added.add(i);
+            }
+        }
+
+        // Serveurs au-delà du nombre configuré : retirés mais toujours joignables
+        for (int serverId : healthMonitor.serverIds()) {
+            if (serverId > numberOfSecondaryServers && healthMonitor.setDecommissioned(serverId, true)) {
+                removed.add(serverId);
+                changes.add("Serveur secondaire " + serverId + " retiré");
+            }
+        }
+        return changes;
+    }
 
     public static void main(String[] args) 
     {
+        // Numéro du serveur principal (1 par défaut, le seul sans partage des fichiers)
+        principalId = args.length > 0 ? Integer.parseInt(args[0]) : 1;
+        loadConfiguration();
+
+        healthMonitor.start();
+        repairWorker.start();
+        rebalancer.start();
+
         try (ServerSocket serverSocket = new ServerSocket(serverPort)) {
-            System.out.println("Serveur principal prêt à recevoir des commandes...");
+            System.out.println("Serveur principal " + principalId + "/" + shardMap.size() + " prêt à recevoir des commandes sur le port " + serverPort + "...");
 
             while (true) {
                 // Accepter un client
                 Socket clientSocket = serverSocket.accept();
-                System.out.println("Connexion acceptée depuis : " + clientSocket.getInetAddress());
+                log.sample("Connexion acceptée depuis : %s", clientSocket.getInetAddress());
 
                 // Traiter chaque client dans un nouveau thread
                 new Thread(new ClientHandler(clientSocket)).start();
@@ -63,6 +249,128 @@ public class ServeurPrincipal
         }
     }
 
+    // Envoie les partSize prochains octets du flux au serveur secondaire (commande PUTPART)
+    // et retourne leur CRC32. limiter peut être null (aucune limite de débit).
+    static long sendFileToSecondaryServer(InputStream fileInputStream, String partName, long partSize, int serverId,
+                                          BandwidthLimiter limiter) throws IOException 
+    {
+        try (Socket secondarySocket = healthMonitor.connect(serverId);
+            DataOutputStream dataOutputStream = new DataOutputStream(new BufferedOutputStream(secondarySocket.getOutputStream()));
+            DataInputStream dataInputStream = new DataInputStream(secondarySocket.getInputStream())) {
+    
+            dataOutputStream.writeUTF("PUTPART");
+            dataOutputStream.writeUTF(partName);
+            dataOutputStream.writeLong(partSize);
+    
+            CRC32 checksum = new CRC32();
+            long totalBytesSent = 0;
+            long start = System.nanoTime();
+            long throttled = BandwidthLimiter.waitedNanos();
+            boolean completed = false;
+            placementEngine.beginTransfer(serverId);
+            try {
+                InputStream source = limiter == null ? fileInputStream : limiter.wrap(fileInputStream);
+                totalBytesSent = Transfers.copyBytes(source, dataOutputStream, partSize, new byte[transferBufferSize], checksum);
+                if (totalBytesSent < partSize) {
+                    throw new IOException("fin de fichier inattendue après " + totalBytesSent + " octets sur " + partSize);
+                }
+                dataOutputStream.flush();
+
+                String response = dataInputStream.readUTF();
+                if (!"OK".equals(response)) {
+                    throw new IOException("le serveur secondaire " + serverId + " a refusé " + partName + " : " + response);
+                }
+                completed = true;
+            } finally {
+                // Sans les attentes de jetons (limite de débit ou ordonnanceur de la source)
+                placementEngine.endTransfer(serverId, totalBytesSent, System.nanoTime() - start - (BandwidthLimiter.waitedNanos() - throttled));
+                recordSecondary(serverId, "PUTPART", start, totalBytesSent, 0, !completed);
+            }
+            log.sample("Total envoyé au serveur secondaire %d: %d bytes", serverId, totalBytesSent);
+            return checksum.getValue();
+        }
+    }
+
+    // Interroge un serveur secondaire sur une partie : STAT (taille) ou CHECKSUM (CRC32).
+    // Retourne -1 si la partie est absente ou le serveur injoignable.
+    static long queryPart(String command, int serverId, String partName)
+    {
+        long start = System.nanoTime();
+        try (Socket secondarySocket = healthMonitor.connect(serverId);
+            DataOutputStream secondaryOutputStream = new DataOutputStream(secondarySocket.getOutputStream());
+            DataInputStream secondaryInputStream = new DataInputStream(secondarySocket.getInputStream())) {
+
+            secondaryOutputStream.writeUTF(command);
+            secondaryOutputStream.writeUTF(partName);
+            secondaryOutputStream.flush();
+            long value = secondaryInputStream.readLong();
+            recordSecondary(serverId, command, start, 0, 0, false);
+            return value;
+        } catch (IOException e) {
+            recordSecondary(serverId, command, start, 0, 0, true);
+            log.error("Erreur lors de la vérification de %s sur le serveur secondaire %d : %s", partName, serverId, e.getMessage());
+            return -1;
+        }
+    }
+
+    // Supprime une copie d'une partie sur un serveur secondaire (commande RMPART) ; false
+    // si le serveur n'a pas répondu (une partie déjà absente compte comme supprimée)
+    static boolean removePart(int serverId, String partName)
+    {
+        long start = System.nanoTime();
+        try (Socket secondarySocket = healthMonitor.connect(serverId);
+            DataOutputStream secondaryOutputStream = new DataOutputStream(secondarySocket.getOutputStream());
+            DataInputStream secondaryInputStream = new DataInputStream(secondarySocket.getInputStream())) {
+
+            secondaryOutputStream.writeUTF("RMPART");
+            secondaryOutputStream.writeUTF(partName);
+            secondaryOutputStream.flush();
+            secondaryInputStream.readUTF();
+            recordSecondary(serverId, "RMPART", start, 0, 0, false);
+            return true;
+        } catch (IOException e) {
+            recordSecondary(serverId, "RMPART", start, 0, 0, true);
+            log.error("Suppression de %s sur le serveur secondaire %d impossible : %s", partName, serverId, e.getMessage());
+            return false;
+        }
+    }
+
+    // Supprime une copie devenue inutile (déplacement abandonné ou remplacé), sauf si le
+    // manifeste actuel du fichier l'utilise sur ce serveur
+    static void removeUnreferencedPart(String fileName, String partName, int serverId)
+    {
+        try {
+            FileManifest manifest = FileManifest.load(serverPrincipalDirectory, fileName);
+            if (manifest != null) {
+                for (FileManifest.Part part : manifest.parts) {
+                    if (part.serverId == serverId && manifest.partName(part).equals(partName)) {
+                        return;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            log.error("Suppression de %s : %s", partName, e.getMessage());
+            return;
+        }
+        removePart(serverId, partName);
+    }
+
+    // Une requête vers un serveur secondaire : nombre, erreurs, latence et octets échangés
+    static void recordSecondary(int serverId, String operation, long startNanos, long bytesSent, long bytesReceived, boolean failed)
+    {
+        metrics.counter(Metrics.name("secondary_requests_total", "secondary", serverId, "op", operation)).increment();
+        if (failed) {
+            metrics.counter(Metrics.name("secondary_errors_total", "secondary", serverId, "op", operation)).increment();
+        }
+        metrics.histogram(Metrics.name("secondary_latency_us", "secondary", serverId, "op", operation)).recordNanos(System.nanoTime() - startNanos);
+        if (bytesSent > 0) {
+            metrics.meter(Metrics.name("secondary_bytes_sent", "secondary", serverId)).mark(bytesSent);
+        }
+        if (bytesReceived > 0) {
+            metrics.meter(Metrics.name("secondary_bytes_received", "secondary", serverId)).mark(bytesReceived);
+        }
+    }
+
     // Classe interne pour gérer les connexions client
     private static class ClientHandler implements Runnable 
     {
@@ -76,257 +384,629 @@ public class ServeurPrincipal
         @Override
         public void run() 
         {
-            try (DataInputStream clientInputStream = new DataInputStream(clientSocket.getInputStream());
-                 DataOutputStream clientOutputStream = new DataOutputStream(clientSocket.getOutputStream())) {
+            activeConnections.incrementAndGet();
+            try (CountingInputStream countedInput = new CountingInputStream(clientSocket.getInputStream());
+                 CountingOutputStream countedOutput = new CountingOutputStream(clientSocket.getOutputStream());
+                 DataInputStream clientInputStream = new DataInputStream(countedInput);
+                 DataOutputStream clientOutputStream = new DataOutputStream(countedOutput)) {
 
                 // Lire la commande du client (PUT, GET, LS, RM)
                 String command = clientInputStream.readUTF();
-                System.out.println("Commande reçue : " + command);
-
-                switch (command.toUpperCase()) {
-                    case "PUT":
-                        handlePut(clientInputStream, clientOutputStream);
-                        break;
-                    case "GET":
-                        handleGet(clientInputStream, clientOutputStream);
-                        break;
-                    case "LS":
-                        handleLs(clientOutputStream);
-                        break;
-                    case "RM":
-                        handleRm(clientInputStream, clientOutputStream);
-                        break;
-                    default:
-                        System.out.println("Commande inconnue : " + command);
-                        clientOutputStream.writeUTF("Commande invalide.");
-                        break;
+                log.sample("Commande reçue : %s", command);
+
+                String label = command.toUpperCase();
+                String client = clientSocket.getInetAddress().getHostAddress();
+                long start = System.nanoTime();
+                boolean completed = false;
+
+                // Commande relayée par un autre serveur principal : traitée ici sans autre relais
+                boolean forwarded = label.equals("FORWARD");
+                if (forwarded) {
+                    label = clientInputStream.readUTF().toUpperCase();
+                }
+
+                // Les commandes portant sur un fichier commencent par son nom ; celles qui
+                // concernent le domaine d'un autre serveur principal lui sont relayées
+                String fileName = FILE_COMMANDS.contains(label) ? clientInputStream.readUTF() : null;
+                if (fileName != null && !fileName.isEmpty() && !forwarded) {
+                    int owner = shardMap.ownerOf(fileName);
+                    if (owner != principalId) {
+                        try {
+                            forward(owner, label, fileName, clientSocket, clientInputStream, clientOutputStream);
+                            completed = true;
+                        } finally {
+                            metrics.recordCommand("FORWARD", start, countedInput.count(), countedOutput.count(), !completed);
+                        }
+                        return;
+                    }
+                }
+
+                try {
+                    switch (label) {
+                        case "PUT":
+                            handlePut(client, fileName, clientInputStream, clientOutputStream);
+                            break;
+                        case "GET":
+                            handleGet(client, fileName, clientOutputStream);
+                            break;
+                        case "LS":
+                            handleLs(clientOutputStream);
+                            break;
+                        case "RM":
+                            handleRm(fileName, clientOutputStream);
+                            break;
+                        case "LAYOUT":
+                            handleLayout(fileName, clientOutputStream);
+                            break;
+                        case "PLAN":
+                            handlePlan(fileName, clientInputStream, clientOutputStream);
+                            break;
+                        case "COMMIT":
+                            handleCommit(fileName, clientOutputStream);
+                            break;
+                        case "PLACEMENT":
+                            handlePlacement(fileName, clientOutputStream);
+                            break;
+                        case "HEALTH":
+                            handleHealth(clientOutputStream);
+                            break;
+                        case "STATS":
+                            handleStats(clientInputStream, clientOutputStream);
+                            break;
+                        case "RELOAD":
+                            handleReload(clientOutputStream);
+                            break;
+                        case "REBALANCE":
+                            writeLines(rebalancer.describe(), clientOutputStream);
+                            break;
+                        default:
+                            log.info("Commande inconnue : %s", command);
+                            label = "UNKNOWN"; // Nombre d'étiquettes borné
+                            clientOutputStream.writeUTF("Commande invalide.");
+                            break;
+                    }
+                    completed = true;
+                } finally {
+                    metrics.recordCommand(label, start, countedInput.count(), countedOutput.count(), !completed);
                 }
 
             } catch (IOException e) {
                 // System.err.println("Erreur lors du traitement du client : " + e.getMessage());
                 // e.printStackTrace();
             } finally {
+                activeConnections.decrementAndGet();
                 try {
                     clientSocket.close();
                 } catch (IOException e) {
-                    System.err.println("Erreur lors de la fermeture du socket client : " + e.getMessage());
+                    log.error("Erreur lors de la fermeture du socket client : %s", e.getMessage());
                 }
             }
         }
 
-        private static void handlePut(DataInputStream clientInputStream, DataOutputStream clientOutputStream) throws IOException 
+        // Relaie la requête au serveur principal qui possède le fichier puis recopie les
+        // octets dans les deux sens jusqu'à la fin de sa réponse ; le format des réponses
+        // est ainsi celui de chaque commande, pour les clients qui ne routent pas eux-mêmes
+        private static void forward(int owner, String label, String fileName, Socket clientSocket,
+                                    DataInputStream clientInputStream, DataOutputStream clientOutputStream) throws IOException
         {
-            // Recevoir le nom et la taille du fichier
-            String fileName = clientInputStream.readUTF();
+            ShardMap.Primary primary = shardMap.get(owner);
+            log.sample("Commande %s pour %s relayée au %s", label, fileName, primary);
+            metrics.counter(Metrics.name("forwarded_total", "primary", owner)).increment();
+
+            try (Socket ownerSocket = new Socket()) {
+                try {
+                    ownerSocket.connect(new InetSocketAddress(primary.address, primary.port), forwardConnectTimeout);
+                } catch (IOException e) {
+                    log.error("Erreur lors du relais de %s vers le %s : %s", label, primary, e.getMessage());
+                    throw e;
+                }
+                DataOutputStream ownerOutputStream = new DataOutputStream(new BufferedOutputStream(ownerSocket.getOutputStream()));
+                ownerOutputStream.writeUTF("FORWARD");
+                ownerOutputStream.writeUTF(label);
+                ownerOutputStream.writeUTF(fileName);
+                ownerOutputStream.flush();
+
+                // Client -> serveur propriétaire dans un second thread (corps d'un PUT par exemple)
+                Thread upstream = new Thread(() -> {
+                    try {
+                        Transfers.copyBytes(clientInputStream, ownerOutputStream, -1, new byte[transferBufferSize], null);
+                        ownerOutputStream.flush();
+                        ownerSocket.shutdownOutput();
+                    } catch (IOException e) {
+                        // Connexion fermée par l'un des deux côtés
+                    }
+                }, "relais-" + label);
+                upstream.setDaemon(true);
+                upstream.start();
+
+                // Serveur propriétaire -> client, jusqu'à la fin de la réponse
+                Transfers.copyBytes(ownerSocket.getInputStream(), clientOutputStream, -1, new byte[transferBufferSize], null);
+                clientOutputStream.flush();
+                clientSocket.shutdownInput(); // Débloque la lecture du relais
+            }
+        }
+
+        private static void handlePut(String client, String fileName, DataInputStream clientInputStream, DataOutputStream clientOutputStream) throws IOException 
+        {
+            // Recevoir la taille du fichier (le nom a été lu pour le routage)
             long fileSize = clientInputStream.readLong();
         
-            // Sauvegarder le fichier reçu
+            // Sauvegarder le fichier reçu sous un nom temporaire, puis le publier une fois
+            // complet et sur disque : un envoi interrompu ne laisse pas de fichier tronqué
             File file = new File(serverPrincipalDirectory, "received_" + fileName);
-            try (FileOutputStream fileOutputStream = new FileOutputStream(file)) 
-            {
-                byte[] buffer = new byte[1024];
-                int bytesRead;
-                while ((bytesRead = clientInputStream.read(buffer)) != -1) {
-                    fileOutputStream.write(buffer, 0, bytesRead);
+            File temporary = GroupCommit.temporaryFile(file);
+            long received;
+            try {
+                try (FileOutputStream fileOutputStream = new FileOutputStream(temporary)) 
+                {
+                    received = Transfers.copyBytes(clientInputStream, fileOutputStream, -1, new byte[transferBufferSize], null);
                 }
+                if (received < fileSize) {
+                    log.error("Envoi de %s interrompu : %s octets sur %s.", fileName, received, fileSize);
+                    clientOutputStream.writeUTF("Erreur : Fichier " + fileName + " incomplet.");
+                    return;
+                }
+                groupCommit.publish(temporary, file);
+            } finally {
+                temporary.delete(); // Sans effet une fois publié
             }
         
-            System.out.println("Fichier reçu et sauvegardé : " + fileName);
+            log.sample("Fichier reçu et sauvegardé : %s", fileName);
         
             // Vérification de la disponibilité des serveurs secondaires
-            List<Socket> secondaryServers = checkAvailableServers();
+            List<Integer> secondaryServers = checkAvailableServers();
         
-            // Diviser et envoyer aux serveurs secondaires disponibles
-            divideAndSendFile(file, secondaryServers);
-        
-            // Fermer les connexions avec les serveurs secondaires
-            for (Socket secondarySocket : secondaryServers) {
-                if (!secondarySocket.isClosed()) {
-                    secondarySocket.close();
-                }
+            // Diviser et envoyer aux serveurs secondaires disponibles, au débit accordé par
+            // l'ordonnanceur des transferts
+            try (TransferScheduler.Stream stream = transferScheduler.open(client, "PUT", file.length())) {
+                divideAndSendFile(fileName, file, secondaryServers, stream);
             }
         
             clientOutputStream.writeUTF("Fichier reçu et distribué avec succès.");
         }
 
-        private static List<Socket> checkAvailableServers() {
-            List<Socket> availableServers = new ArrayList<>();
-            
-            for (int i = 0; i < secondaryServerAddresses.size(); i++) {
-                String serverAddress = secondaryServerAddresses.get(i);
-                int serverPort = secondaryServerPorts.get(i);
+        // Numéros (1..n) des serveurs secondaires en état UP d'après la surveillance
+        private static List<Integer> checkAvailableServers() {
+            List<Integer> availableServers = healthMonitor.upServers();
+            log.sample("Serveurs secondaires disponibles : %s", availableServers);
+            return availableServers;
+        }
 
-                try {
-                    Socket socket = new Socket(serverAddress, serverPort);
-                    availableServers.add(socket);
-                    System.out.println("Serveur secondaire " + (i + 1) + " disponible.");
-                } catch (IOException e) {
-                    System.err.println("Erreur de connexion au serveur secondaire " + (i + 1) + ": " + e.getMessage());
+        private static void divideAndSendFile(String fileName, File file, List<Integer> availableServers,
+                                              TransferScheduler.Stream stream) throws IOException {
+            // Diviser et envoyer le fichier aux serveurs secondaires disponibles
+            if (availableServers.isEmpty()) {
+                log.error("Aucun serveur secondaire disponible pour traiter le fichier.");
+                return;
+            }
+            FileManifest manifest = placementEngine.plan(fileName, file.length(), availableServers);
+            if (manifest.parts.isEmpty()) {
+                log.error("Espace insuffisant sur les serveurs secondaires pour le fichier %s.", fileName);
+                return;
+            }
+
+            try (FileInputStream fileInputStream = new FileInputStream(file)) {
+                InputStream source = stream.wrap(fileInputStream);
+                for (FileManifest.Part part : manifest.parts) 
+                {
+                    // Envoyer cette partie au serveur secondaire choisi, directement depuis le fichier
+                    part.checksum = sendFileToSecondaryServer(source, manifest.partName(part), part.length, part.serverId, null);
+                    log.sample("Partie %s envoyée, taille : %s bytes", part.index, part.length);
                 }
             }
-            return availableServers;
+
+            // Enregistrer la répartition pour les GET directs (commande LAYOUT) : publie les
+            // nouvelles parties, celles de l'envoi précédent ne servent plus
+            FileManifest previous = FileManifest.load(serverPrincipalDirectory, fileName);
+            manifest.save(serverPrincipalDirectory, groupCommit);
+            removeParts(previous);
         }
 
-        private static void divideAndSendFile(File file, List<Socket> availableServers) throws IOException {
-            // Diviser et envoyer le fichier aux serveurs secondaires disponibles
-            long fileSize = file.length();
-            int nbServers = availableServers.size();
-            if (nbServers == 0) {
-                System.err.println("Aucun serveur secondaire disponible pour traiter le fichier.");
+        // Suppression différée des parties d'un envoi remplacé ou abandonné
+        private static void removeParts(FileManifest manifest)
+        {
+            if (manifest == null) {
                 return;
             }
-            long partSize = fileSize / nbServers;
-            long remainingBytes = fileSize % nbServers;
+            for (FileManifest.Part part : manifest.parts) {
+                rebalancer.removeLater(manifest.fileName, manifest.partName(part), part.serverId);
+            }
+        }
 
-            FileInputStream fileInputStream = new FileInputStream(file);
-            
-            for (int i = 0; i < nbServers; i++) 
+        // Commande PLAN : envoi direct par le client. Le serveur principal calcule le
+        // découpage et les serveurs cibles, le client envoie lui-même chaque partie
+        // (PUTPART) puis confirme avec COMMIT. La réponse a le même format que LAYOUT.
+        private static void handlePlan(String fileName, DataInputStream clientInputStream, DataOutputStream clientOutputStream) throws IOException
+        {
+            long fileSize = clientInputStream.readLong();
+            log.sample("Commande PLAN pour le fichier : %s (%s octets)", fileName, fileSize);
+
+            List<Integer> secondaryServers = checkAvailableServers();
+            if (secondaryServers.isEmpty()) {
+                log.error("Aucun serveur secondaire disponible pour traiter le fichier.");
+                clientOutputStream.writeLong(-1);
+                clientOutputStream.writeInt(0);
+                return;
+            }
+
+            FileManifest plan = placementEngine.plan(fileName, fileSize, secondaryServers);
+            if (plan.parts.isEmpty()) {
+                log.error("Espace insuffisant sur les serveurs secondaires pour le fichier %s.", fileName);
+                clientOutputStream.writeLong(-1);
+                clientOutputStream.writeInt(0);
+                return;
+            }
+            expirePendingUploads();
+            PendingUpload replaced = pendingUploads.put(fileName, new PendingUpload(plan, System.currentTimeMillis() + pendingUploadTimeout));
+            if (replaced != null) {
+                cancelPendingUpload(fileName, replaced); // Nouveau PLAN avant le COMMIT du précédent
+            }
+            writeLayout(plan, clientOutputStream);
+        }
+
+        // Abandonne les envois directs dont le COMMIT n'est pas arrivé à temps, avec les
+        // parties déjà reçues
+        private static void expirePendingUploads()
+        {
+            long now = System.currentTimeMillis();
+            for (Map.Entry<String, PendingUpload> entry : pendingUploads.entrySet()) {
+                if (entry.getValue().expires <= now && cancelPendingUpload(entry.getKey(), entry.getValue())) {
+                    log.info("Envoi direct de %s abandonné : aucun COMMIT reçu.", entry.getKey());
+                }
+            }
+        }
+
+        // Annule un envoi direct et supprime ses parties ; attend la fin d'un COMMIT en
+        // cours. Retourne false si l'envoi était déjà confirmé ou annulé.
+        private static boolean cancelPendingUpload(String fileName, PendingUpload pending)
+        {
+            synchronized (pending) {
+                if (pending.closed) {
+                    return false;
+                }
+                pending.closed = true;
+            }
+            pendingUploads.remove(fileName, pending);
+            removeParts(pending.plan);
+            return true;
+        }
+
+        // Commande COMMIT : vérifie auprès des serveurs secondaires que chaque partie du
+        // plan est présente avec la bonne taille, puis enregistre le manifeste avec le
+        // CRC32 de chaque partie.
+        private static void handleCommit(String fileName, DataOutputStream clientOutputStream) throws IOException
+        {
+            expirePendingUploads();
+            PendingUpload pending = pendingUploads.get(fileName);
+            if (pending == null) {
+                clientOutputStream.writeUTF("Erreur : Aucun envoi en cours pour le fichier " + fileName);
+                return;
+            }
+            FileManifest plan = pending.plan;
+
+            for (FileManifest.Part part : plan.parts)
             {
-                File partFile = new File(secondaryServerDirectories.get(i), "part_" + (i + 1) + "_" + file.getName());
-                FileOutputStream partOutputStream = new FileOutputStream(partFile);
-                byte[] buffer = new byte[1024];
-                long bytesToWrite = partSize + (i == nbServers - 1 ? remainingBytes : 0);
-                long bytesWritten = 0;
-                
-                while (bytesWritten < bytesToWrite) {
-                    int bytesRead = fileInputStream.read(buffer, 0, (int) Math.min(buffer.length, bytesToWrite - bytesWritten));
-                    if (bytesRead == -1) break;
-                    partOutputStream.write(buffer, 0, bytesRead);
-                    bytesWritten += bytesRead;
+                long storedSize = queryPart("STAT", part.serverId, plan.partName(part));
+                if (storedSize != part.length) {
+                    log.error("Partie %s de %s invalide sur le serveur secondaire %s (%s octets au lieu de %s).", part.index, fileName, part.serverId, storedSize, part.length);
+                    clientOutputStream.writeUTF("Erreur : La partie " + part.index + " n'a pas été reçue par le serveur secondaire " + part.serverId);
+                    return;
                 }
+                // Référence pour détecter plus tard une partie corrompue (réparation)
+                part.checksum = queryPart("CHECKSUM", part.serverId, plan.partName(part));
+            }
 
-                partOutputStream.close();
-                System.out.println("Partie " + (i + 1) + " prête, taille : " + partFile.length() + " bytes");
+            // La publication se fait sous le verrou de l'envoi : un RM ou une expiration
+            // simultanés l'annulent avant, ou attendent qu'elle soit terminée
+            synchronized (pending) {
+                if (pending.closed) {
+                    clientOutputStream.writeUTF("Erreur : L'envoi de " + fileName + " a été annulé");
+                    return;
+                }
+
+                // Une copie complète laissée par un PUT précédent ne correspond plus au fichier :
+                // la réparation et le LS ne doivent plus s'en servir
+                File fullCopy = new File(serverPrincipalDirectory, "received_" + fileName);
+                if (fullCopy.exists() && !fullCopy.delete()) {
+                    log.error("Impossible de supprimer l'ancienne copie complète de %s.", fileName);
+                    clientOutputStream.writeUTF("Erreur : Impossible de remplacer le fichier " + fileName);
+                    return;
+                }
 
-                // Envoyer cette partie au serveur secondaire disponible
-                sendFileToSecondaryServer(partFile, availableServers.get(i), i + 1);
+                FileManifest previous = FileManifest.load(serverPrincipalDirectory, fileName);
+                plan.save(serverPrincipalDirectory, groupCommit);
+                pending.closed = true;
+                pendingUploads.remove(fileName, pending);
+                removeParts(previous);
             }
-            fileInputStream.close();
+            log.sample("Envoi direct confirmé : %s", fileName);
+            clientOutputStream.writeUTF("Fichier reçu et distribué avec succès.");
         }
 
-        private static void sendFileToSecondaryServer(File file, Socket secondarySocket, int serverId) throws IOException 
+        // Commande PLACEMENT : dernières décisions de placement (nom de fichier vide : toutes)
+        private static void handlePlacement(String fileName, DataOutputStream clientOutputStream) throws IOException
         {
-            try (FileInputStream fileInputStream = new FileInputStream(file);
-                DataOutputStream dataOutputStream = new DataOutputStream(secondarySocket.getOutputStream())) {
-        
-                dataOutputStream.writeUTF(file.getName());
-                dataOutputStream.writeLong(file.length());
-        
-                byte[] buffer = new byte[1024];
-                int bytesRead;
-                long totalBytesSent = 0;
-        
-                while ((bytesRead = fileInputStream.read(buffer)) != -1) 
-                {
-                    dataOutputStream.write(buffer, 0, bytesRead);
-                    totalBytesSent += bytesRead;
+            List<PlacementEngine.Decision> decisions = placementEngine.decisions(fileName);
+            clientOutputStream.writeInt(decisions.size());
+            for (PlacementEngine.Decision decision : decisions) {
+                clientOutputStream.writeUTF(decision.toString());
+            }
+            clientOutputStream.flush();
+        }
+
+        // Commande HEALTH : état de chaque serveur secondaire selon la surveillance
+        private static void handleHealth(DataOutputStream clientOutputStream) throws IOException
+        {
+            List<String> lines = healthMonitor.describe();
+            clientOutputStream.writeInt(lines.size());
+            for (String line : lines) {
+                clientOutputStream.writeUTF(line);
+            }
+            clientOutputStream.flush();
+        }
+
+        // Commande RELOAD : relit les serveurs secondaires dans config.properties et lance
+        // le rééquilibrage si des serveurs ont été ajoutés ou retirés
+        private static void handleReload(DataOutputStream clientOutputStream) throws IOException
+        {
+            Properties prop = new Properties();
+            List<String> lines;
+            Set<Integer> added = new TreeSet<>();
+            Set<Integer> removed = new TreeSet<>();
+            try (InputStream input = new FileInputStream("config.properties")) {
+                prop.load(input);
+                lines = new ArrayList<>(loadSecondaryServers(prop, added, removed));
+            } catch (IOException | NumberFormatException e) {
+                lines = List.of("Erreur : Configuration illisible (" + e.getMessage() + ")");
+            }
+
+            if (!added.isEmpty() || !removed.isEmpty()) {
+                rebalancer.membershipChanged(added, removed);
+                lines.add("Rééquilibrage lancé (état : commande REBALANCE).");
+            } else if (lines.isEmpty()) {
+                lines.add("Aucun changement des serveurs secondaires.");
+            }
+            log.info("Configuration relue : %s", lines);
+            writeLines(lines, clientOutputStream);
+        }
+
+        private static void writeLines(List<String> lines, DataOutputStream clientOutputStream) throws IOException
+        {
+            clientOutputStream.writeInt(lines.size());
+            for (String line : lines) {
+                clientOutputStream.writeUTF(line);
+            }
+            clientOutputStream.flush();
+        }
+
+        // Commande STATS : mesures du serveur principal (cible vide) ou, relayées, celles
+        // du serveur secondaire dont le numéro est donné. Une mesure par ligne.
+        private static void handleStats(DataInputStream clientInputStream, DataOutputStream clientOutputStream) throws IOException
+        {
+            String target = clientInputStream.readUTF().trim();
+            List<String> lines;
+            if (target.isEmpty()) {
+                lines = metrics.describe();
+            } else {
+                lines = new ArrayList<>();
+                try (Socket secondarySocket = healthMonitor.connect(Integer.parseInt(target));
+                    DataOutputStream secondaryOutputStream = new DataOutputStream(secondarySocket.getOutputStream());
+                    DataInputStream secondaryInputStream = new DataInputStream(secondarySocket.getInputStream())) {
+
+                    secondaryOutputStream.writeUTF("STATS");
+                    secondaryOutputStream.flush();
+                    int lineCount = secondaryInputStream.readInt();
+                    for (int i = 0; i < lineCount; i++) {
+                        lines.add(secondaryInputStream.readUTF());
+                    }
+                } catch (NumberFormatException | IOException e) {
+                    lines.add("Erreur : Mesures du serveur secondaire " + target + " indisponibles (" + e.getMessage() + ")");
                 }
-                System.out.println("Total envoyé au serveur secondaire " + serverId + ": " + totalBytesSent + " bytes");
             }
+
+            clientOutputStream.writeInt(lines.size());
+            for (String line : lines) {
+                clientOutputStream.writeUTF(line);
+            }
+            clientOutputStream.flush();
         }
 
         // Les autres méthodes restent inchangées    
-        private static void handleGet(DataInputStream clientInputStream, DataOutputStream clientOutputStream) throws IOException 
+        private static void handleGet(String client, String fileName, DataOutputStream clientOutputStream) throws IOException 
         {
-            // Recevoir le nom du fichier demandé par le client
-            String fileName = clientInputStream.readUTF();
-            System.out.println("Commande GET pour le fichier : " + fileName);
+            log.sample("Commande GET pour le fichier : %s", fileName);
         
             ByteArrayOutputStream completeFileData = new ByteArrayOutputStream(); // Stockage des données complètes du fichier
-        
+            FileManifest layout = resolveLayout(fileName);
+
             // Connexion aux serveurs secondaires pour récupérer les parties
-            for (int i = 1; i <= secondaryServerAddresses.size(); i++) 
-            {
-                String serverAddress = secondaryServerAddresses.get(i - 1);
-                int serverPort = secondaryServerPorts.get(i - 1);
-        
-                try (Socket secondarySocket = new Socket(serverAddress, serverPort);
-                    DataInputStream secondaryInputStream = new DataInputStream(secondarySocket.getInputStream());
-                    DataOutputStream secondaryOutputStream = new DataOutputStream(secondarySocket.getOutputStream())) {
-        
-                    // Envoyer le nom de la partie demandée
-                    String partName = "part_" + i + "_received_" + fileName; // Format des noms de parties
-                    secondaryOutputStream.writeUTF("GET");
-                    secondaryOutputStream.writeUTF(partName);
-                    System.out.println("Demande envoyée au serveur secondaire pour : " + partName);
-        
-                    // Lire la taille de la partie
-                    long fileSize = secondaryInputStream.readLong();
-                    if (fileSize == -1) {
-                        System.err.println("La partie " + i + " est introuvable sur le serveur secondaire.");
-                        continue;
-                    }
-                    if (fileSize <= 0 || fileSize > Integer.MAX_VALUE) {
-                        System.err.println("Erreur : Taille du fichier reçue invalide (" + fileSize + ").");
-                        continue; // Passer à la partie suivante
-                    }
+            try (TransferScheduler.Stream stream = transferScheduler.open(client, "GET", layout.fileSize)) {
+                for (FileManifest.Part part : layout.parts)
+                {
+                    int i = part.index;
+                    long requestStart = System.nanoTime();
+
+                    try (Socket secondarySocket = healthMonitor.connect(part.serverId);
+                        DataInputStream secondaryInputStream = new DataInputStream(secondarySocket.getInputStream());
+                        DataOutputStream secondaryOutputStream = new DataOutputStream(secondarySocket.getOutputStream())) {
+
+                        // Envoyer le nom de la partie demandée
+                        String partName = layout.partName(part); // Format des noms de parties
+                        secondaryOutputStream.writeUTF("GET");
+                        secondaryOutputStream.writeUTF(partName);
+                        log.sample("Demande envoyée au serveur secondaire pour : %s", partName);
         
-                    System.out.println("Réception de la partie " + i + " de taille " + fileSize + " octets.");
-                    byte[] buffer = new byte[1024];
-                    int bytesRead;
-                    long totalRead = 0;
+                        // Lire la taille de la partie
+                        long fileSize = secondaryInputStream.readLong();
+                        if (fileSize == -1) {
+                            recordSecondary(part.serverId, "GET", requestStart, 0, 0, true);
+                            log.error("La partie %s est introuvable sur le serveur secondaire.", i);
+                            continue;
+                        }
+                        if (fileSize <= 0 || fileSize > Integer.MAX_VALUE) {
+                            log.error("Erreur : Taille du fichier reçue invalide (%s).", fileSize);
+                            continue; // Passer à la partie suivante
+                        }
         
-                    while (totalRead < fileSize && (bytesRead = secondaryInputStream.read(buffer)) != -1) {
-                        completeFileData.write(buffer, 0, bytesRead);
-                        totalRead += bytesRead;
-                    }
+                        log.sample("Réception de la partie %s de taille %s octets.", i, fileSize);
+                        long totalRead = 0;
+                        long start = System.nanoTime();
+                        long throttled = BandwidthLimiter.waitedNanos();
+                        placementEngine.beginTransfer(part.serverId);
+                        try {
+                            totalRead = Transfers.copyBytes(stream.wrap(secondaryInputStream), completeFileData, fileSize, new byte[transferBufferSize], null);
+                        } finally {
+                            placementEngine.endTransfer(part.serverId, totalRead, System.nanoTime() - start - (BandwidthLimiter.waitedNanos() - throttled));
+                            recordSecondary(part.serverId, "GET", requestStart, 0, totalRead, totalRead < fileSize);
+                        }
         
-                    if (totalRead < fileSize) {
-                        System.err.println("La partie " + i + " n'a pas été complètement reçue. Attendu : " + fileSize + " octets, Reçu : " + totalRead + " octets.");
+                        if (totalRead < fileSize) {
+                            log.error("La partie %s n'a pas été complètement reçue. Attendu : %s octets, Reçu : %s octets.", i, fileSize, totalRead);
+                        }
+                    } catch (IOException e) {
+                        recordSecondary(part.serverId, "GET", requestStart, 0, 0, true);
+                        log.error("Erreur lors de la récupération de la partie %s : %s", i, e.getMessage());
                     }
-                } catch (IOException e) {
-                    System.err.println("Erreur lors de la récupération de la partie " + i + " : " + e.getMessage());
                 }
             }
         
+            // Une partie manquante donnerait un fichier tronqué : réparer plutôt que l'envoyer
+            if (completeFileData.size() != layout.fileSize) {
+                log.error("Le fichier %s est incomplet (%s octets sur %s), réparation demandée.", fileName, completeFileData.size(), layout.fileSize);
+                repairWorker.requestRepair(fileName);
+                completeFileData.reset();
+            }
+
             // Vérifier si le fichier complet a été assemblé
             if (completeFileData.size() > 0) {
                 byte[] fileData = completeFileData.toByteArray();
                 clientOutputStream.writeUTF(fileName); // Envoyer le nom du fichier
                 clientOutputStream.writeLong(fileData.length); // Envoyer la taille du fichier
                 clientOutputStream.write(fileData); // Envoyer les données du fichier
-                System.out.println("Fichier complet envoyé au client.");
+                log.sample("Fichier complet envoyé au client.");
             } else {
                 clientOutputStream.writeUTF("Erreur : Impossible de récupérer le fichier " + fileName);
-                System.err.println("Le fichier " + fileName + " n'a pas pu être récupéré.");
+                log.error("Le fichier %s n'a pas pu être récupéré.", fileName);
+            }
+        }
+
+        // Commande LAYOUT : renvoyer uniquement la répartition des parties pour que le
+        // client les récupère directement auprès des serveurs secondaires.
+        // Réponse : taille du fichier (-1 si inconnu), nombre de parties, puis pour chaque
+        // partie : numéro, adresse, port, nom de la partie, décalage et taille.
+        private static void handleLayout(String fileName, DataOutputStream clientOutputStream) throws IOException
+        {
+            log.sample("Commande LAYOUT pour le fichier : %s", fileName);
+
+            FileManifest layout = resolveLayout(fileName);
+            if (layout.parts.isEmpty()) {
+                clientOutputStream.writeLong(-1);
+                clientOutputStream.writeInt(0);
+                log.error("Aucune partie connue pour le fichier %s.", fileName);
+                return;
+            }
+
+            for (FileManifest.Part part : layout.parts) {
+                if (healthMonitor.state(part.serverId) == HealthMonitor.State.DOWN) {
+                    repairWorker.requestRepair(fileName); // Le client échouera sur cette partie
+                    break;
+                }
             }
+            writeLayout(layout, clientOutputStream);
+        }
+
+        private static void writeLayout(FileManifest layout, DataOutputStream clientOutputStream) throws IOException
+        {
+            clientOutputStream.writeLong(layout.fileSize);
+            clientOutputStream.writeInt(layout.parts.size());
+            for (FileManifest.Part part : layout.parts)
+            {
+                // Serveur absent de la configuration (retiré avant un redémarrage) : adresse
+                // vide et port -1, le client compte la partie comme introuvable
+                boolean known = part.serverId >= 1 && part.serverId <= secondaryServerAddresses.size();
+                clientOutputStream.writeInt(part.index);
+                clientOutputStream.writeUTF(known ? secondaryServerAddresses.get(part.serverId - 1) : "");
+                clientOutputStream.writeInt(known ? secondaryServerPorts.get(part.serverId - 1) : -1);
+                clientOutputStream.writeUTF(layout.partName(part));
+                clientOutputStream.writeLong(part.offset);
+                clientOutputStream.writeLong(part.length);
+            }
+            clientOutputStream.flush();
+        }
+
+        // Répartition d'un fichier : le manifeste enregistré lors du PUT, ou à défaut
+        // (fichiers envoyés avant les manifestes) la partie i cherchée sur le serveur i.
+        private static FileManifest resolveLayout(String fileName) throws IOException
+        {
+            FileManifest manifest = FileManifest.load(serverPrincipalDirectory, fileName);
+            if (manifest != null) {
+                return manifest;
+            }
+
+            List<File> partFiles = new ArrayList<>();
+            long fileSize = 0;
+            for (int i = 1; i <= secondaryServerDirectories.size(); i++)
+            {
+                File partFile = new File(secondaryServerDirectories.get(i - 1), "part_" + i + "_received_" + fileName);
+                if (!partFile.isFile()) {
+                    break; // Les décalages des parties suivantes seraient faux
+                }
+                partFiles.add(partFile);
+                fileSize += partFile.length();
+            }
+
+            FileManifest legacy = new FileManifest(fileName, fileSize);
+            long offset = 0;
+            for (int i = 0; i < partFiles.size(); i++) {
+                legacy.addPart(i + 1, offset, partFiles.get(i).length());
+                offset += partFiles.get(i).length();
+            }
+            return legacy;
         }
 
         private static void handleLs(DataOutputStream clientOutputStream) throws IOException 
         {
             // Liste des fichiers dans le serveur principal
             File directory = new File(serverPrincipalDirectory); 
-            File[] files = directory.listFiles();
+            File[] files = directory.listFiles(File::isFile); // Sans le répertoire des manifestes
 
             if (files == null) {
                 clientOutputStream.writeInt(0); // Aucun fichier trouvé
-                System.out.println("Erreur : Le répertoire principal n'est pas accessible ou n'existe pas.");
+                log.error("Erreur : Le répertoire principal n'est pas accessible ou n'existe pas.");
                 return;
             }
 
-            if (files.length == 0) {
+            // Les fichiers envoyés directement (PPUT) n'ont qu'un manifeste sur le serveur principal
+            Set<String> fileNames = new TreeSet<>();
+            for (File file : files) {
+                if (!GroupCommit.isTemporary(file.getName())) { // Envois en cours
+                    fileNames.add(file.getName());
+                }
+            }
+            for (String fileName : FileManifest.listFileNames(serverPrincipalDirectory)) {
+                fileNames.add("received_" + fileName);
+            }
+
+            if (fileNames.isEmpty()) {
                 clientOutputStream.writeInt(0); // Répertoire vide
-                System.out.println("Le répertoire principal est vide.");
+                log.sample("Le répertoire principal est vide.");
                 return;
             }
 
             try {
                 // Envoyer le nombre de fichiers
-                clientOutputStream.writeInt(files.length);
-                System.out.println("Nombre de fichiers trouvés : " + files.length);
+                clientOutputStream.writeInt(fileNames.size());
+                log.sample("Nombre de fichiers trouvés : %s", fileNames.size());
 
-                for (File file : files) 
+                for (String fileName : fileNames) 
                 {
-                    if (file.isFile()) 
-                    {
-                        System.out.println("Envoi du fichier : " + file.getName());
-                        clientOutputStream.writeUTF(file.getName());
-                    }
+                    log.sample("Envoi du fichier : %s", fileName);
+                    clientOutputStream.writeUTF(fileName);
                 }
 
-                System.out.println("Liste des fichiers envoyée.");
+                log.sample("Liste des fichiers envoyée.");
             } catch (IOException e) {
-                System.out.println("Erreur lors de l'envoi des fichiers : " + e.getMessage());
+                log.error("Erreur lors de l'envoi des fichiers : %s", e.getMessage());
                 e.printStackTrace();
             }
 
@@ -359,91 +1039,57 @@ public class ServeurPrincipal
         }
         
 
-        private static void handleRm(DataInputStream clientInputStream, DataOutputStream clientOutputStream) throws IOException 
+        // Commande RM : supprime chaque partie sur le serveur secondaire qui la porte
+        // d'après le manifeste (RMPART), puis la copie complète et le manifeste. La
+        // suppression ne dépend pas du client : une seule réponse lui est envoyée à la fin.
+        private static void handleRm(String fileName, DataOutputStream clientOutputStream)
         {
-            String fileName = clientInputStream.readUTF();
-            String fileName1 = "received_" + fileName;
-            System.out.println("Commande RM pour le fichier : " + fileName1);
-
-            boolean successOnPrimary = false;
+            log.sample("Commande RM pour le fichier : %s", fileName);
 
-            // Étape 1 : Suppression sur le serveur principal
-            try 
-            {
-                File fileOnPrimary = new File(serverPrincipalDirectory, fileName1);
-                if (fileOnPrimary.exists() && fileOnPrimary.delete()) 
-                {
-                    System.out.println("Fichier principal supprimé sur le serveur principal.");
-                    clientOutputStream.writeUTF("Fichier supprimé avec succès sur le serveur principal.");
-                    successOnPrimary = true;
-                } 
-                else {
-                    System.err.println("Le fichier principal n'existe pas sur le serveur principal.");
-                    clientOutputStream.writeUTF("Erreur : Le fichier principal n'existe pas sur le serveur principal.");
-                }
-            } catch (Exception e) {
-                System.err.println("Erreur lors de la suppression sur le serveur principal : " + e.getMessage());
-                clientOutputStream.writeUTF("Erreur : Impossible de supprimer le fichier principal sur le serveur principal.");
+            // Un envoi direct en cours ne doit pas republier le fichier après le RM
+            PendingUpload pending = pendingUploads.get(fileName);
+            if (pending != null) {
+                cancelPendingUpload(fileName, pending);
             }
 
-            // Étape 2 : Suppression sur les serveurs secondaires
-            for (int i = 0; i < secondaryServerAddresses.size(); i++) 
-            {
-                String serverAddress = secondaryServerAddresses.get(i);
-                int serverPort = secondaryServerPorts.get(i);
-
-                try (Socket secondarySocket = new Socket(serverAddress, serverPort);
-                    DataOutputStream secondaryOutputStream = new DataOutputStream(secondarySocket.getOutputStream());
-                    DataInputStream secondaryInputStream = new DataInputStream(secondarySocket.getInputStream())) {
-
-                    // Suppression du fichier principal sur le serveur secondaire
-                    secondaryOutputStream.writeUTF("RM");
-                    secondaryOutputStream.writeUTF(fileName);
-
-                    // Recevoir la réponse du serveur secondaire
-                    String response = secondaryInputStream.readUTF();
-                    System.out.println("Réponse des serveurs secondaires pour le fichier principal : " + response);
-                    clientOutputStream.writeUTF("Serveur secondaire " + (i + 1) + " : " + response);
-
-                    // Suppression des parties associées
-                    boolean foundParts = false;
-                    for (int partIndex = 1; partIndex <= secondaryServerAddresses.size()+1; partIndex++) // Pour les 3 parties
-                    {
-                        String partName = "part_" + partIndex + "_received_" + fileName;
-
-                        // Envoyer la commande RM pour chaque partie
-                        secondaryOutputStream.writeUTF("RM");
-                        secondaryOutputStream.writeUTF(partName);
-
-                        // Recevoir la réponse
-                        response = secondaryInputStream.readUTF();
-                        if ("NOT_FOUND".equals(response)) {
-                            break; // Sortir de la boucle si aucune autre partie n'est trouvée
-                        }
-
-                        System.out.println("Réponse du serveur secondaire " + (i + 1) + " pour " + partName + " : " + response);
-                        clientOutputStream.writeUTF("Serveur secondaire " + (i + 1) + " : " + response);
-                        foundParts = true;
-                    }
-
-                    if (!foundParts) {
-                        System.out.println("Aucune partie trouvée pour le fichier " + fileName + " sur le serveur secondaire " + (i + 1));
-                        clientOutputStream.writeUTF("Aucune partie trouvée pour le fichier " + fileName + " sur le serveur secondaire " + (i + 1));
+            String response;
+            try {
+                // Étape 1 : Suppression des parties sur les serveurs secondaires
+                FileManifest layout = resolveLayout(fileName);
+                int failed = 0;
+                for (FileManifest.Part part : layout.parts) {
+                    if (!removePart(part.serverId, layout.partName(part))) {
+                        failed++;
                     }
+                }
 
-                    clientOutputStream.writeUTF("Les parties aussi ont ete effacees");
+                // Étape 2 : Suppression sur le serveur principal
+                File fileOnPrimary = new File(serverPrincipalDirectory, "received_" + fileName);
+                boolean fileDeleted = fileOnPrimary.delete();
+                boolean manifestDeleted = FileManifest.delete(serverPrincipalDirectory, fileName);
 
-                } catch (IOException e) {
-                    // System.err.println("Erreur lors de la suppression sur le serveur secondaire " + (i + 1) + " : " + e.getMessage());
-                    clientOutputStream.writeUTF("Erreur : Serveur secondaire " + (i + 1) + " inaccessible.");
+                if (!fileDeleted && !manifestDeleted && layout.parts.isEmpty()) {
+                    log.error("Le fichier %s n'existe pas sur le serveur principal.", fileName);
+                    response = "Erreur : Le fichier principal n'existe pas sur le serveur principal.";
+                } else if (failed > 0) {
+                    log.error("RM de %s : %d partie(s) non supprimée(s).", fileName, failed);
+                    response = "Fichier " + fileName + " supprimé, mais " + failed + " partie(s) sur "
+                               + layout.parts.size() + " n'ont pas pu être supprimées (serveur secondaire injoignable).";
+                } else {
+                    log.sample("Fichier %s et ses %d parties supprimés.", fileName, layout.parts.size());
+                    response = "Fichier " + fileName + " et ses " + layout.parts.size() + " parties supprimés avec succès.";
                 }
+            } catch (IOException e) {
+                log.error("Erreur lors de la suppression de %s : %s", fileName, e.getMessage());
+                response = "Erreur : Impossible de supprimer le fichier " + fileName + " (" + e.getMessage() + ")";
             }
 
-            // Étape 3 : Résumer le statut au client
-            if (successOnPrimary) {
-                clientOutputStream.writeUTF("La suppression a été effectuée sur le serveur principal et les serveurs secondaires.");
-            } else {
-                clientOutputStream.writeUTF("La suppression n'a pas pu être effectuée sur le serveur principal. Vérifiez les journaux.");
+            // Étape 3 : Résumer le statut au client, s'il attend encore la réponse
+            try {
+                clientOutputStream.writeUTF(response);
+                clientOutputStream.flush();
+            } catch (IOException e) {
+                log.error("Réponse au RM de %s non envoyée : %s", fileName, e.getMessage());
             }
         }
 
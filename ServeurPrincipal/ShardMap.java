@@ -0,0 +1,94 @@
+package ServeurPrincipal;
+
+import java.util.*;
+
+// Répartition des noms de fichiers entre plusieurs serveurs principaux. Chaque serveur
+// principal (server.principalN.*, le premier pouvant garder les clés server.principal.*)
+// possède les manifestes et les envois en cours des fichiers de son domaine. Le domaine
+// d'un fichier est choisi par hachage de rendez-vous sur son nom : ajouter un serveur
+// principal ne déplace qu'environ 1/n des fichiers. Publique pour le routage du Client.
+public class ShardMap
+{
+    public static class Primary
+    {
+        public final int id;
+        public final String address;
+        public final int port;
+        public final String directory;
+
+        Primary(int id, String address, int port, String directory)
+        {
+            this.id = id;
+            this.address = address;
+            this.port = port;
+            this.directory = directory;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "serveur principal " + id + " (" + address + ":" + port + ")";
+        }
+    }
+
+    private final List<Primary> primaries = new ArrayList<>();
+
+    // Serveurs principaux décrits par server.principal.count (1 par défaut)
+    public static ShardMap load(Properties prop)
+    {
+        ShardMap shardMap = new ShardMap();
+        int count = Integer.parseInt(prop.getProperty("server.principal.count", "1"));
+        for (int id = 1; id <= count; id++)
+        {
+            String prefix = "server.principal" + id + ".";
+            String address = prop.getProperty(prefix + "address", id == 1 ? prop.getProperty("server.principal.address", "localhost") : "localhost");
+            String port = prop.getProperty(prefix + "port.base", id == 1 ? prop.getProperty("server.principal.port.base", prop.getProperty("server.principal.port", "12345")) : null);
+            if (port == null) {
+                throw new IllegalArgumentException("port du serveur principal " + id + " absent (" + prefix + "port.base)");
+            }
+            String directory = prop.getProperty(prefix + "directory", id == 1 ? prop.getProperty("server.principal.directory", "ServeurPrincipal") : "ServeurPrincipal" + id);
+            shardMap.primaries.add(new Primary(id, address.trim(), Integer.parseInt(port.trim()), directory));
+        }
+        return shardMap;
+    }
+
+    public int size()
+    {
+        return primaries.size();
+    }
+
+    // Serveur principal numéro id (1..size())
+    public Primary get(int id)
+    {
+        return primaries.get(id - 1);
+    }
+
+    public List<Primary> all()
+    {
+        return Collections.unmodifiableList(primaries);
+    }
+
+    // Numéro du serveur principal qui possède ce fichier
+    public int ownerOf(String fileName)
+    {
+        int owner = 1;
+        long bestScore = Long.MIN_VALUE;
+        for (Primary primary : primaries)
+        {
+            long score = mix(((long) fileName.hashCode() << 32) ^ (primary.id * 0xC2B2AE3D27D4EB4FL));
+            if (score > bestScore) {
+                owner = primary.id;
+                bestScore = score;
+            }
+        }
+        return owner;
+    }
+
+    // Finaliseur de SplitMix64, partagé avec le hachage de rendez-vous du Rebalancer
+    static long mix(long value)
+    {
+        value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+        value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+        return value ^ (value >>> 31);
+    }
+}
@@ -0,0 +1,204 @@
+package ServeurPrincipal;
+
+import Supervision.Metrics;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Ordonnanceur des transferts entre le serveur principal et les serveurs secondaires
+// (envoi des parties d'un PUT, lecture des parties d'un GET). Chaque transfert ouvre un
+// Stream dont chaque tampon consomme des jetons :
+// - dans le seau de son client et dans celui de sa commande (limites facultatives) ;
+// - dans le seau global, qui représente le débit disponible vers les serveurs secondaires.
+// Un transfert d'au plus smallTransferSize octets est interactif : il prend ses jetons
+// globaux sans attendre, la dette étant remboursée par les transferts volumineux. Ceux-ci
+// attendent leur tour dans une file ; un flux n'y ayant qu'une demande à la fois, la file
+// les sert à tour de rôle, un tampon chacun, et le débit est partagé équitablement.
+class TransferScheduler
+{
+    // Seau d'un client, partagé par ses transferts en cours
+    private static class ClientBucket
+    {
+        final BandwidthLimiter limiter;
+        int streams;
+
+        ClientBucket(long bytesPerSecond)
+        {
+            this.limiter = new BandwidthLimiter(bytesPerSecond);
+        }
+    }
+
+    private final long bytesPerSecond;
+    private final long smallTransferSize;
+    private final long clientBytesPerSecond;
+    private final Map<String, ClientBucket> clients = new HashMap<>();
+    private final Map<String, BandwidthLimiter> commands = new ConcurrentHashMap<>();
+    private final BandwidthLimiter unlimited = new BandwidthLimiter(0);
+
+    // Seau global ; la rafale est limitée à 100 ms de débit pour que les transferts
+    // volumineux ne remplissent pas d'un coup les tampons des liens
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+    private final ArrayDeque<Object> turns = new ArrayDeque<>();
+
+    private final AtomicInteger interactiveStreams = new AtomicInteger();
+    private final AtomicInteger bulkStreams = new AtomicInteger();
+
+    // bytesPerSecond, clientBytesPerSecond <= 0 : aucune limite
+    TransferScheduler(long bytesPerSecond, long smallTransferSize, long clientBytesPerSecond)
+    {
+        this.bytesPerSecond = bytesPerSecond;
+        this.smallTransferSize = smallTransferSize;
+        this.clientBytesPerSecond = clientBytesPerSecond;
+        this.tokens = Math.max(0, bytesPerSecond / 10);
+
+        Metrics metrics = ServeurPrincipal.metrics;
+        metrics.gauge(Metrics.name("qos_streams", "class", "interactive"), interactiveStreams::get);
+        metrics.gauge(Metrics.name("qos_streams", "class", "bulk"), bulkStreams::get);
+        metrics.gauge("qos_bulk_waiting", this::waiting);
+    }
+
+    // Limite propre à une commande (PUT, GET) en octets/s, <= 0 : aucune limite
+    void setCommandLimit(String command, long bytesPerSecond)
+    {
+        commands.put(command, new BandwidthLimiter(bytesPerSecond));
+    }
+
+    // Début d'un transfert d'environ expectedBytes octets pour ce client et cette commande
+    Stream open(String client, String command, long expectedBytes)
+    {
+        ClientBucket bucket;
+        synchronized (clients) {
+            bucket = clients.computeIfAbsent(client, key -> new ClientBucket(clientBytesPerSecond));
+            bucket.streams++;
+        }
+        return new Stream(client, bucket, commands.getOrDefault(command, unlimited),
+                          expectedBytes >= 0 && expectedBytes <= smallTransferSize);
+    }
+
+    // Un transfert en cours, à fermer à la fin (try-with-resources)
+    class Stream implements Closeable
+    {
+        private final String client;
+        private final ClientBucket bucket;
+        private final BandwidthLimiter commandLimiter;
+        private final boolean interactive;
+        private boolean closed;
+
+        private Stream(String client, ClientBucket bucket, BandwidthLimiter commandLimiter, boolean interactive)
+        {
+            this.client = client;
+            this.bucket = bucket;
+            this.commandLimiter = commandLimiter;
+            this.interactive = interactive;
+            (interactive ? interactiveStreams : bulkStreams).incrementAndGet();
+        }
+
+        void acquire(int bytes) throws InterruptedIOException
+        {
+            long start = System.nanoTime();
+            bucket.limiter.acquire(bytes);
+            commandLimiter.acquire(bytes);
+            if (interactive) {
+                takeNow(bytes);
+            } else {
+                takeInTurn(bytes);
+            }
+            ServeurPrincipal.metrics.histogram(Metrics.name("qos_wait_us", "class", interactive ? "interactive" : "bulk"))
+                                    .recordNanos(System.nanoTime() - start);
+        }
+
+        // Flux dont chaque lecture consomme des jetons
+        InputStream wrap(InputStream input)
+        {
+            return new FilterInputStream(input) {
+                @Override
+                public int read(byte[] buffer, int offset, int length) throws IOException
+                {
+                    int bytesRead = super.read(buffer, offset, length);
+                    if (bytesRead > 0) {
+                        acquire(bytesRead);
+                    }
+                    return bytesRead;
+                }
+            };
+        }
+
+        @Override
+        public void close()
+        {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            (interactive ? interactiveStreams : bulkStreams).decrementAndGet();
+            synchronized (clients) {
+                if (--bucket.streams == 0) {
+                    clients.remove(client, bucket);
+                }
+            }
+        }
+    }
+
+    // Transfert interactif : jetons pris immédiatement, quitte à s'endetter
+    private void takeNow(int bytes)
+    {
+        if (bytesPerSecond <= 0) {
+            return;
+        }
+        synchronized (this) {
+            refill();
+            tokens -= bytes;
+        }
+    }
+
+    // Transfert volumineux : attendre d'être en tête de file et que la dette soit remboursée
+    private void takeInTurn(int bytes) throws InterruptedIOException
+    {
+        if (bytesPerSecond <= 0) {
+            return;
+        }
+        long start = System.nanoTime();
+        synchronized (this) {
+            Object turn = new Object();
+            turns.addLast(turn);
+            try {
+                while (true)
+                {
+                    refill();
+                    boolean first = turns.peekFirst() == turn;
+                    if (first && tokens >= 0) {
+                        break;
+                    }
+                    if (first) {
+                        wait(Math.max(1, (long) (-tokens * 1000.0 / bytesPerSecond)));
+                    } else {
+                        wait();
+                    }
+                }
+                tokens -= bytes;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("attente de bande passante interrompue");
+            } finally {
+                turns.remove(turn);
+                notifyAll();
+                BandwidthLimiter.recordWait(System.nanoTime() - start);
+            }
+        }
+    }
+
+    private synchronized int waiting()
+    {
+        return turns.size();
+    }
+
+    private void refill()
+    {
+        long now = System.nanoTime();
+        tokens = Math.min(bytesPerSecond / 10.0, tokens + (now - lastRefill) * bytesPerSecond / 1_000_000_000.0);
+        lastRefill = now;
+    }
+}
@@ -0,0 +1,49 @@
+package ServeurSecondaire1;
+
+import java.util.*;
+
+// Noms des parties d'un serveur secondaire regroupés par fichier d'origine, pour que la
+// suppression d'un fichier (RM) retrouve ses parties sans lister le répertoire ni
+// parcourir tout l'index des segments. Une partie se nomme part_<n>_received_<fichier>,
+// ou part_<n>_<envoi>_received_<fichier> avec l'identifiant de l'envoi ; les autres noms
+// ne sont pas indexés.
+class PartIndex
+{
+    private static final String SEPARATOR = "_received_";
+
+    private final Map<String, Set<String>> partsByFile = new HashMap<>();
+
+    // Fichier d'origine d'une partie, null si le nom n'est pas celui d'une partie
+    static String fileNameOf(String partName)
+    {
+        if (!partName.startsWith("part_")) {
+            return null;
+        }
+        int separator = partName.indexOf(SEPARATOR);
+        return separator < 0 ? null : partName.substring(separator + SEPARATOR.length());
+    }
+
+    synchronized void add(String partName)
+    {
+        String fileName = fileNameOf(partName);
+        if (fileName != null) {
+            partsByFile.computeIfAbsent(fileName, key -> new HashSet<>()).add(partName);
+        }
+    }
+
+    synchronized void remove(String partName)
+    {
+        String fileName = fileNameOf(partName);
+        Set<String> parts = fileName == null ? null : partsByFile.get(fileName);
+        if (parts != null && parts.remove(partName) && parts.isEmpty()) {
+            partsByFile.remove(fileName);
+        }
+    }
+
+    // Copie des noms des parties connues de ce fichier
+    synchronized List<String> partsOf(String fileName)
+    {
+        Set<String> parts = partsByFile.get(fileName);
+        return parts == null ? new ArrayList<>() : new ArrayList<>(parts);
+    }
+}
@@ -0,0 +1,595 @@
+package ServeurSecondaire1;
+
+import Stockage.GroupCommit;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+// Stockage des petites parties dans de gros fichiers segments en ajout seul
+// (<répertoire>/.segments/segment_<n>.dat) au lieu d'un fichier par partie.
+//
+// Un enregistrement est : RECORD_MAGIC, nom (writeUTF), taille (-1 : suppression),
+// données, CRC32 des données, RECORD_END. Quand un segment atteint sa taille maximale,
+// il est scellé : un pied de segment (INDEX_MAGIC, nombre d'entrées, puis nom, position
+// de l'enregistrement, position des données et taille de chaque entrée) et une fin de
+// fichier (position du pied, SEGMENT_END) lui sont ajoutés. Au démarrage, l'index en
+// mémoire est reconstruit à partir des pieds des segments scellés ; seul le dernier
+// segment, encore ouvert, est relu enregistrement par enregistrement (et tronqué après
+// le dernier enregistrement complet). Les enregistrements plus récents remplacent les
+// plus anciens. Le compactage en tâche de fond recopie les entrées encore valides des
+// segments scellés trop remplis de données mortes puis supprime ces segments.
+//
+// put() et delete() ne rendent la main qu'une fois l'enregistrement sur disque : la
+// synchronisation du segment ouvert est partagée par les écritures simultanées
+// (GroupCommit). Un segment est synchronisé à son scellement, et les copies du compactage
+// avant la suppression de l'ancien segment. Le répertoire .segments est synchronisé à
+// la création de chaque segment, sans quoi un arrêt brutal pourrait perdre le fichier
+// entier avec des écritures déjà confirmées. Cette création se fait à l'avance et hors
+// du verrou (segment de réserve) : le changement de segment ne bloque pas les écritures.
+class SegmentStore
+{
+    private static final int RECORD_MAGIC = 0x53454731;    // "SEG1"
+    private static final int RECORD_END = 0x454e4431;      // "END1"
+    private static final int INDEX_MAGIC = 0x49445831;     // "IDX1"
+    private static final int SEGMENT_END = 0x53454e44;     // "SEND"
+    private static final long TOMBSTONE = -1;
+
+    // Emplacement des données d'une partie
+    private static class Entry
+    {
+        final int segmentId;
+        final long recordOffset;
+        final long dataOffset;
+        final long length;      // TOMBSTONE pour une suppression
+
+        Entry(int segmentId, long recordOffset, long dataOffset, long length)
+        {
+            this.segmentId = segmentId;
+            this.recordOffset = recordOffset;
+            this.dataOffset = dataOffset;
+            this.length = length;
+        }
+    }
+
+    private static class Segment
+    {
+        final int id;
+        final File file;
+        final FileChannel channel;
+        long size;
+        long liveBytes;         // Données encore référencées par l'index
+        boolean sealed;
+        // Entrées du segment ouvert, écrites dans son pied au scellement
+        final Map<String, Entry> records = new LinkedHashMap<>();
+
+        Segment(int id, File file, FileChannel channel, long size)
+        {
+            this.id = id;
+            this.file = file;
+            this.channel = channel;
+            this.size = size;
+        }
+    }
+
+    private final File directory;
+    private final GroupCommit groupCommit;
+    private final long segmentSize;
+    private final double compactionRatio;
+    private final long compactionInterval;   // ms
+    private final Map<String, Entry> index = new ConcurrentHashMap<>();
+    // Mêmes noms regroupés par fichier d'origine (suppression d'un fichier)
+    private final PartIndex parts = new PartIndex();
+    private final NavigableMap<Integer, Segment> segments = new ConcurrentSkipListMap<>();
+    // Lecture : GET, STAT, CHECKSUM ; écriture : suppression d'un segment compacté
+    private final ReadWriteLock segmentsLock = new ReentrantReadWriteLock();
+    private Segment active;
+    private Segment spare;              // Segment suivant déjà créé, hors de segments
+    private boolean preparingSpare;
+    private int nextSegmentId = 1;
+    private ScheduledExecutorService compactor;
+
+    SegmentStore(File directory, GroupCommit groupCommit, long segmentSize, double compactionRatio, long compactionInterval)
+    {
+        this.directory = new File(directory, ".segments");
+        this.groupCommit = groupCommit;
+        this.segmentSize = segmentSize;
+        this.compactionRatio = compactionRatio;
+        this.compactionInterval = compactionInterval;
+    }
+
+    // Reconstruit l'index à partir des segments existants et démarre le compactage
+    synchronized void open() throws IOException
+    {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("impossible de créer " + directory);
+        }
+
+        File[] files = directory.listFiles((dir, name) -> name.startsWith("segment_") && name.endsWith(".dat"));
+        List<Integer> ids = new ArrayList<>();
+        for (File file : files == null ? new File[0] : files) {
+            try {
+                ids.add(Integer.parseInt(file.getName().substring("segment_".length(), file.getName().length() - ".dat".length())));
+            } catch (NumberFormatException e) {
+                ServeurSecondaire.log.error("Segment ignoré : %s", file.getName());
+            }
+        }
+        Collections.sort(ids);
+
+        for (int id : ids)
+        {
+            File file = segmentFile(id);
+            FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            Segment segment = new Segment(id, file, channel, channel.size());
+            segments.put(id, segment);
+            if (!readFooter(segment)) {
+                scan(segment);
+                if (id != ids.get(ids.size() - 1)) {
+                    seal(segment); // Segment ouvert laissé par un arrêt brutal
+                }
+            }
+        }
+
+        Map.Entry<Integer, Segment> last = segments.lastEntry();
+        nextSegmentId = last == null ? 1 : last.getKey() + 1;
+        active = last != null && !last.getValue().sealed ? last.getValue() : newSegment();
+
+        // Les suppressions ne servent qu'à masquer les entrées plus anciennes
+        index.values().removeIf(entry -> entry.length == TOMBSTONE);
+        ServeurSecondaire.log.info("Stockage des petites parties : %d parties dans %d segments.", index.size(), segments.size());
+
+        compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "compactage-segments");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+        compactor.scheduleWithFixedDelay(this::compact, compactionInterval, compactionInterval, TimeUnit.MILLISECONDS);
+    }
+
+    private File segmentFile(int id)
+    {
+        return new File(directory, String.format("segment_%06d.dat", id));
+    }
+
+    // Segment qui succède au segment ouvert : la réserve si elle est prête, sinon un
+    // segment créé sous le verrou
+    private Segment newSegment() throws IOException
+    {
+        Segment segment = spare != null ? spare : createSegment(nextSegmentId++);
+        spare = null;
+        segments.put(segment.id, segment);
+        return segment;
+    }
+
+    private Segment createSegment(int id) throws IOException
+    {
+        File file = segmentFile(id);
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            groupCommit.force(directory);
+        } catch (IOException e) {
+            channel.close();
+            file.delete();
+            throw e;
+        }
+        return new Segment(id, file, channel, 0);
+    }
+
+    // Prépare la réserve hors du verrou, après une écriture. Une réserve devancée par un
+    // segment créé sous le verrou (numéro plus petit que le segment ouvert) est supprimée :
+    // les segments doivent être remplis dans l'ordre de leurs numéros.
+    private void prepareSpare()
+    {
+        int id;
+        synchronized (this) {
+            if (spare != null || preparingSpare) {
+                return;
+            }
+            preparingSpare = true;
+            id = nextSegmentId++;
+        }
+
+        Segment segment = null;
+        try {
+            segment = createSegment(id);
+        } catch (IOException e) {
+            ServeurSecondaire.log.error("Préparation du segment %d impossible : %s", id, e.getMessage());
+        } finally {
+            synchronized (this) {
+                preparingSpare = false;
+                if (segment != null && segment.id > active.id) {
+                    spare = segment;
+                    segment = null;
+                }
+            }
+        }
+        if (segment != null) {
+            try {
+                segment.channel.close();
+            } catch (IOException e) {
+                // Fichier supprimé juste après
+            }
+            segment.file.delete();
+        }
+    }
+
+    // Pied d'un segment scellé ; false si le segment n'est pas scellé
+    private boolean readFooter(Segment segment) throws IOException
+    {
+        if (segment.size < 12) {
+            return false;
+        }
+        ByteBuffer trailer = ByteBuffer.allocate(12);
+        segment.channel.read(trailer, segment.size - 12);
+        trailer.flip();
+        long indexOffset = trailer.getLong();
+        if (trailer.getInt() != SEGMENT_END || indexOffset < 0 || indexOffset > segment.size - 12) {
+            return false;
+        }
+
+        byte[] footer = new byte[(int) (segment.size - 12 - indexOffset)];
+        segment.channel.read(ByteBuffer.wrap(footer), indexOffset);
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(footer));
+        if (input.readInt() != INDEX_MAGIC) {
+            return false;
+        }
+        int count = input.readInt();
+        for (int i = 0; i < count; i++) {
+            String name = input.readUTF();
+            apply(name, new Entry(segment.id, input.readLong(), input.readLong(), input.readLong()));
+        }
+        segment.sealed = true;
+        return true;
+    }
+
+    // Relecture d'un segment ouvert ; tout ce qui suit le dernier enregistrement
+    // complet (écriture interrompue) est supprimé
+    private void scan(Segment segment) throws IOException
+    {
+        DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(segment.file)));
+        long position = 0;
+        try (input) {
+            while (position < segment.size)
+            {
+                if (input.readInt() != RECORD_MAGIC) {
+                    break;
+                }
+                String name = input.readUTF();
+                long length = input.readLong();
+                long dataOffset = position + 4 + 2 + utfLength(name) + 8;
+                long dataLength = Math.max(0, length);
+                if (dataOffset + dataLength + 12 > segment.size) {
+                    break;
+                }
+                input.skipNBytes(dataLength);
+                input.readLong(); // CRC, vérifié au compactage
+                if (input.readInt() != RECORD_END) {
+                    break;
+                }
+                Entry entry = new Entry(segment.id, position, dataOffset, length);
+                segment.records.put(name, entry);
+                apply(name, entry);
+                position = dataOffset + dataLength + 12;
+            }
+        } catch (EOFException | UTFDataFormatException e) {
+            // Enregistrement incomplet
+        }
+
+        if (position < segment.size) {
+            ServeurSecondaire.log.error("Segment %s tronqué à %d octets (%d octets illisibles).", segment.file.getName(), position, segment.size - position);
+            segment.channel.truncate(position);
+            segment.size = position;
+        }
+    }
+
+    private static int utfLength(String name) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new DataOutputStream(bytes).writeUTF(name);
+        return bytes.size() - 2;
+    }
+
+    // Une entrée plus récente remplace l'éventuelle entrée précédente, dont les
+    // données deviennent mortes
+    private void apply(String name, Entry entry)
+    {
+        Entry previous = entry.length == TOMBSTONE && !index.containsKey(name) ? null : index.put(name, entry);
+        if (entry.length == TOMBSTONE) {
+            parts.remove(name);
+        } else {
+            parts.add(name);
+        }
+        if (previous != null && previous.length > 0) {
+            Segment old = segments.get(previous.segmentId);
+            if (old != null) {
+                old.liveBytes -= previous.length;
+            }
+        }
+        if (entry.length > 0) {
+            segments.get(entry.segmentId).liveBytes += entry.length;
+        }
+    }
+
+    // Ajoute un enregistrement au segment ouvert et met l'index à jour ; retourne le canal
+    // du segment écrit, à synchroniser
+    private synchronized FileChannel append(String name, byte[] data, long length) throws IOException
+    {
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        DataOutputStream headerOutput = new DataOutputStream(header);
+        headerOutput.writeInt(RECORD_MAGIC);
+        headerOutput.writeUTF(name);
+        headerOutput.writeLong(length);
+
+        CRC32 checksum = new CRC32();
+        if (data != null) {
+            checksum.update(data);
+        }
+        ByteBuffer footer = ByteBuffer.allocate(12);
+        footer.putLong(checksum.getValue()).putInt(RECORD_END).flip();
+
+        ByteBuffer[] record = {
+            ByteBuffer.wrap(header.toByteArray()),
+            ByteBuffer.wrap(data == null ? new byte[0] : data),
+            footer
+        };
+        long recordOffset = active.size;
+        long total = 0;
+        for (ByteBuffer buffer : record) {
+            total += buffer.remaining();
+        }
+        active.channel.position(recordOffset);
+        while (total > 0) {
+            total -= active.channel.write(record);
+        }
+
+        FileChannel written = active.channel;
+        Entry entry = new Entry(active.id, recordOffset, recordOffset + header.size(), length);
+        active.size = active.channel.position();
+        active.records.put(name, entry);
+        apply(name, entry);
+        if (length == TOMBSTONE) {
+            index.remove(name);
+        }
+
+        if (active.size >= segmentSize) {
+            seal(active);
+            active = newSegment();
+        }
+        return written;
+    }
+
+    private void seal(Segment segment) throws IOException
+    {
+        ByteArrayOutputStream footer = new ByteArrayOutputStream();
+        DataOutputStream footerOutput = new DataOutputStream(footer);
+        footerOutput.writeInt(INDEX_MAGIC);
+        footerOutput.writeInt(segment.records.size());
+        for (Map.Entry<String, Entry> record : segment.records.entrySet()) {
+            footerOutput.writeUTF(record.getKey());
+            footerOutput.writeLong(record.getValue().recordOffset);
+            footerOutput.writeLong(record.getValue().dataOffset);
+            footerOutput.writeLong(record.getValue().length);
+        }
+        footerOutput.writeLong(segment.size);
+        footerOutput.writeInt(SEGMENT_END);
+
+        ByteBuffer buffer = ByteBuffer.wrap(footer.toByteArray());
+        long position = segment.size;
+        while (buffer.hasRemaining()) {
+            position += segment.channel.write(buffer, position);
+        }
+        segment.channel.force(false); // Plus d'écritures : les synchronisations suivantes seront sans objet
+        segment.size = position;
+        segment.sealed = true;
+        segment.records.clear();
+    }
+
+    void put(String name, byte[] data) throws IOException
+    {
+        sync(append(name, data, data.length));
+        prepareSpare();
+    }
+
+    // Supprime une partie ; false si elle n'est pas dans le stockage
+    boolean delete(String name) throws IOException
+    {
+        FileChannel written;
+        synchronized (this) {
+            if (!index.containsKey(name)) {
+                return false;
+            }
+            written = append(name, null, TOMBSTONE);
+        }
+        sync(written);
+        prepareSpare();
+        return true;
+    }
+
+    // Attend la synchronisation du segment écrit (partagée avec les écritures simultanées)
+    private void sync(FileChannel channel) throws IOException
+    {
+        try {
+            groupCommit.force(channel);
+        } catch (ClosedChannelException e) {
+            // Segment scellé (donc synchronisé) puis supprimé par le compactage entre-temps
+        }
+    }
+
+    // Taille d'une partie, -1 si absente
+    long length(String name)
+    {
+        Entry entry = index.get(name);
+        return entry == null ? -1 : entry.length;
+    }
+
+    // Contenu d'une partie, null si absente
+    byte[] read(String name) throws IOException
+    {
+        segmentsLock.readLock().lock();
+        try {
+            Entry entry = index.get(name);
+            if (entry == null) {
+                return null;
+            }
+            byte[] data = new byte[(int) entry.length];
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            FileChannel channel = segments.get(entry.segmentId).channel;
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, entry.dataOffset + buffer.position()) < 0) {
+                    throw new EOFException("segment " + entry.segmentId + " tronqué");
+                }
+            }
+            return data;
+        } finally {
+            segmentsLock.readLock().unlock();
+        }
+    }
+
+    Set<String> names()
+    {
+        return new TreeSet<>(index.keySet());
+    }
+
+    // Parties de ce fichier d'origine rangées dans les segments
+    List<String> partsOf(String fileName)
+    {
+        return parts.partsOf(fileName);
+    }
+
+    // Nombre de segments, de parties et d'octets morts (mesures)
+    int segmentCount()
+    {
+        return segments.size();
+    }
+
+    int partCount()
+    {
+        return index.size();
+    }
+
+    long deadBytes()
+    {
+        long dead = 0;
+        for (Segment segment : segments.values()) {
+            dead += deadBytes(segment);
+        }
+        return dead;
+    }
+
+    // Tout ce qui n'est pas une donnée référencée (données remplacées ou supprimées,
+    // en-têtes, pied) ; le pied ne garde que la dernière entrée de chaque nom, ce
+    // calcul reste donc juste après un redémarrage
+    private static long deadBytes(Segment segment)
+    {
+        return segment.size - segment.liveBytes;
+    }
+
+    // Recopie les entrées valides des segments scellés dont la proportion de données
+    // mortes dépasse compactionRatio, puis supprime ces segments
+    private void compact()
+    {
+        for (Segment segment : new ArrayList<>(segments.values()))
+        {
+            if (!segment.sealed || segment.size == 0 || (double) deadBytes(segment) / segment.size < compactionRatio) {
+                continue;
+            }
+            try {
+                compact(segment);
+            } catch (IOException e) {
+                ServeurSecondaire.log.error("Erreur lors du compactage de %s : %s", segment.file.getName(), e.getMessage());
+            }
+        }
+    }
+
+    private void compact(Segment segment) throws IOException
+    {
+        // Les entrées sont relues depuis le pied du segment
+        Map<String, Entry> records = new LinkedHashMap<>();
+        ByteBuffer trailer = ByteBuffer.allocate(12);
+        segment.channel.read(trailer, segment.size - 12);
+        trailer.flip();
+        long indexOffset = trailer.getLong();
+        byte[] footer = new byte[(int) (segment.size - 12 - indexOffset)];
+        segment.channel.read(ByteBuffer.wrap(footer), indexOffset);
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(footer));
+        input.readInt();
+        int count = input.readInt();
+        for (int i = 0; i < count; i++) {
+            String name = input.readUTF();
+            records.put(name, new Entry(segment.id, input.readLong(), input.readLong(), input.readLong()));
+        }
+
+        int moved = 0;
+        for (Map.Entry<String, Entry> record : records.entrySet())
+        {
+            String name = record.getKey();
+            Entry entry = record.getValue();
+            if (entry.length == TOMBSTONE) {
+                // Encore utile si un segment plus ancien contient une version de la partie
+                synchronized (this) {
+                    if (!index.containsKey(name) && segments.firstKey() < segment.id) {
+                        append(name, null, TOMBSTONE);
+                    }
+                }
+                continue;
+            }
+
+            byte[] data = new byte[(int) entry.length];
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                if (segment.channel.read(buffer, entry.dataOffset + buffer.position()) < 0) {
+                    throw new EOFException("segment " + segment.id + " tronqué");
+                }
+            }
+            ByteBuffer crc = ByteBuffer.allocate(8);
+            segment.channel.read(crc, entry.dataOffset + entry.length);
+            CRC32 checksum = new CRC32();
+            checksum.update(data);
+
+            synchronized (this) {
+                Entry current = index.get(name);
+                if (current == null || current.segmentId != segment.id || current.dataOffset != entry.dataOffset) {
+                    continue; // Remplacée ou supprimée depuis
+                }
+                if (crc.flip().getLong() != checksum.getValue()) {
+                    // Laissée de côté : la réparation du serveur principal la renverra
+                    ServeurSecondaire.log.error("Compactage : %s corrompue dans %s, abandonnée.", name, segment.file.getName());
+                    index.remove(name);
+                    parts.remove(name);
+                    continue;
+                }
+                append(name, data, data.length);
+                moved++;
+            }
+        }
+
+        prepareSpare();
+
+        // Les copies, et les segments créés pour elles, doivent être sur disque avant la
+        // disparition de l'original
+        synchronized (this) {
+            active.channel.force(false);
+        }
+        groupCommit.force(directory);
+
+        segmentsLock.writeLock().lock();
+        try {
+            segments.remove(segment.id);
+            segment.channel.close();
+            if (!segment.file.delete()) {
+                ServeurSecondaire.log.error("Compactage : impossible de supprimer %s.", segment.file.getName());
+            }
+        } finally {
+            segmentsLock.writeLock().unlock();
+        }
+        ServeurSecondaire.log.info("Compactage de %s : %d parties recopiées, %d octets libérés.", segment.file.getName(), moved, deadBytes(segment));
+    }
+}
@@ -1,8 +1,17 @@
 package ServeurSecondaire1;
 
+import Supervision.AsyncLog;
+import Supervision.CountingInputStream;
+import Supervision.CountingOutputStream;
+import Supervision.Metrics;
+import Stockage.GroupCommit;
+import Stockage.Transfers;
+
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
 
 public class ServeurSecondaire 
 {
@@ -10,8 +19,23 @@ public class ServeurSecondaire
     private static int serverId;
     private static int basePort;
     private static String directoryPath;
+    private static int bufferSize;
     private static String serverPrincipalPath;
-    private static List<String> secondaryServerDirectories = new ArrayList<>();
+
+    // Mesures par commande (commande STATS) et journal asynchrone échantillonné
+    private static final Metrics metrics = new Metrics();
+    private static final AtomicInteger activeConnections = new AtomicInteger();
+    static AsyncLog log;
+
+    // Synchronisations sur disque regroupées (fichiers, parties et segments reçus)
+    private static GroupCommit groupCommit;
+
+    // Parties de petite taille regroupées dans des fichiers segments
+    private static SegmentStore segmentStore;
+    private static long smallPartMaxSize;
+
+    // Grandes parties (un fichier chacune) de ce serveur, par fichier d'origine
+    private static final PartIndex fileParts = new PartIndex();
 
     // Lecture de la configuration à partir du fichier config.properties
     public static void loadConfiguration() 
@@ -26,13 +50,35 @@ public class ServeurSecondaire
             directoryPath = prop.getProperty("server.secondary" + serverId + ".directory", "ServeurSecondaire1");
 
             serverPrincipalPath = prop.getProperty("server.principal.directory", "ServeurPrincipal");
-
-            int numberOfSecondaryServers = Integer.parseInt(prop.getProperty("server.secondary.count", "2"));
-            for (int i = 1; i <= numberOfSecondaryServers; i++) 
-            {
-                String secondaryDirectory = prop.getProperty("server.secondary" + i + ".directory", "ServeurSecondaire");
-                secondaryServerDirectories.add(secondaryDirectory);
-            }
+            bufferSize = Integer.parseInt(prop.getProperty("server.transfer.buffer.size", "1024"));
+
+            log = new AsyncLog("journal-secondaire-" + serverId,
+                               Integer.parseInt(prop.getProperty("server.log.queue.size", "10000")),
+                               Integer.parseInt(prop.getProperty("server.log.sample.every", "100")));
+            metrics.gauge("connections_active", activeConnections::get);
+            metrics.gauge("disk_free_bytes", () -> new File(directoryPath).getUsableSpace());
+            metrics.gauge("log_queue_depth", log::pending);
+            metrics.gauge("log_dropped_total", log::dropped);
+
+            // Durabilité (délai de regroupement en millisecondes, nombre maximal par lot)
+            groupCommit = new GroupCommit("synchronisation-secondaire-" + serverId,
+                                          Long.parseLong(prop.getProperty("server.commit.delay", "2")),
+                                          Integer.parseInt(prop.getProperty("server.commit.batch", "256")),
+                                          Boolean.parseBoolean(prop.getProperty("server.commit.fsync", "true")));
+            metrics.gauge("commit_batches_total", groupCommit::batches);
+            metrics.gauge("commit_requests_total", groupCommit::requests);
+            metrics.gauge("commit_syncs_total", groupCommit::syncs);
+            metrics.gauge("commit_pending", groupCommit::pending);
+
+            // Regroupement des petites parties (tailles en octets, intervalle en ms)
+            smallPartMaxSize = Long.parseLong(prop.getProperty("server.segment.part.max", "1048576"));
+            segmentStore = new SegmentStore(new File(directoryPath), groupCommit,
+                                            Long.parseLong(prop.getProperty("server.segment.size", "67108864")),
+                                            Double.parseDouble(prop.getProperty("server.segment.compaction.ratio", "0.5")),
+                                            Long.parseLong(prop.getProperty("server.segment.compaction.interval", "60000")));
+            metrics.gauge("segment_count", segmentStore::segmentCount);
+            metrics.gauge("segment_parts", segmentStore::partCount);
+            metrics.gauge("segment_dead_bytes", segmentStore::deadBytes);
 
         } catch (IOException ex) {
             System.err.println("Erreur lors du chargement de la configuration : " + ex.getMessage());
@@ -52,6 +98,15 @@ public class ServeurSecondaire
 
         // Charger la configuration après avoir déterminé l'ID du serveur
         loadConfiguration();
+        segmentStore.open();
+        int leftovers = GroupCommit.removeTemporaryFiles(new File(directoryPath));
+        if (leftovers > 0) {
+            log.info("%d fichier(s) temporaire(s) d'envois interrompus supprimé(s).", leftovers);
+        }
+        File[] partFiles = new File(directoryPath).listFiles(File::isFile);
+        for (File partFile : partFiles == null ? new File[0] : partFiles) {
+            fileParts.add(partFile.getName());
+        }
 
         int port = basePort + serverId; // Port unique pour chaque serveur secondaire
 
@@ -62,16 +117,31 @@ public class ServeurSecondaire
         while (true) 
         {
             Socket socket = serverSocket.accept();
-            DataInputStream dataInputStream = new DataInputStream(socket.getInputStream());
-            DataOutputStream dataOutputStream = new DataOutputStream(socket.getOutputStream());
 
-            try {
-                // Lire la commande (PUT pour recevoir un fichier ou GET pour envoyer une partie)
-                String command = dataInputStream.readUTF();
-                System.out.println("Commande reçue : " + command);
+            // Traiter chaque connexion dans un nouveau thread, pour que les battements du
+            // serveur principal ne restent pas bloqués derrière un long transfert
+            new Thread(() -> handleConnection(socket)).start();
+        }
+    }
 
+    private static void handleConnection(Socket socket) 
+    {
+        activeConnections.incrementAndGet();
+        try (CountingInputStream countedInput = new CountingInputStream(socket.getInputStream());
+             CountingOutputStream countedOutput = new CountingOutputStream(socket.getOutputStream());
+             DataInputStream dataInputStream = new DataInputStream(countedInput);
+             DataOutputStream dataOutputStream = new DataOutputStream(countedOutput)) {
+
+            // Lire la commande (PUT pour recevoir un fichier ou GET pour envoyer une partie)
+            String command = dataInputStream.readUTF();
+            log.sample("Commande reçue : %s", command);
+
+            String label = command.toUpperCase();
+            long start = System.nanoTime();
+            boolean completed = false;
+            try {
                 // Gestion des commandes avec switch
-                switch (command.toUpperCase()) {
+                switch (label) {
                     case "PUT":
                         // Gérer la réception d'un fichier
                         receiveFile(dataInputStream);
@@ -92,17 +162,60 @@ public class ServeurSecondaire
                         handleRemoveFile(dataInputStream, dataOutputStream);
                         break;
 
+                    case "RMPART":
+                        // Gérer la suppression d'une seule partie (rééquilibrage)
+                        handleRemovePart(dataInputStream, dataOutputStream);
+                        break;
+
+                    case "PUTPART":
+                        // Gérer la réception d'une partie (client ou serveur principal)
+                        receivePart(dataInputStream, dataOutputStream);
+                        break;
+
+                    case "STAT":
+                        // Gérer la consultation de la taille d'une partie
+                        handleStat(dataInputStream, dataOutputStream);
+                        break;
+
+                    case "CHECKSUM":
+                        // Gérer le calcul du CRC32 d'une partie (détection des parties corrompues)
+                        handleChecksum(dataInputStream, dataOutputStream);
+                        break;
+
+                    case "INFO":
+                        // Annoncer l'espace libre du répertoire (placement des parties)
+                        dataOutputStream.writeLong(new File(directoryPath).getUsableSpace());
+                        dataOutputStream.flush();
+                        break;
+
+                    case "STATS":
+                        // Envoyer les mesures du serveur, une par ligne
+                        List<String> lines = metrics.describe();
+                        dataOutputStream.writeInt(lines.size());
+                        for (String line : lines) {
+                            dataOutputStream.writeUTF(line);
+                        }
+                        dataOutputStream.flush();
+                        break;
+
                     default:
                         // System.out.println("Commande inconnue : " + command);
+                        label = "UNKNOWN"; // Nombre d'étiquettes borné
                         dataOutputStream.writeUTF("Erreur : Commande inconnue.");
                         break;
                 }
-            } catch (IOException e) {
-                System.err.println("Erreur lors du traitement : " + e.getMessage());
+                completed = true;
             } finally {
-                dataInputStream.close();
-                dataOutputStream.close();
+                metrics.recordCommand(label, start, countedInput.count(), countedOutput.count(), !completed);
+            }
+        } catch (IOException e) {
+            log.error("Erreur lors du traitement : %s", e.getMessage());
+        } finally {
+            activeConnections.decrementAndGet();
+            try {
                 socket.close();
+            } catch (IOException e) {
+                log.error("Erreur lors de la fermeture du socket : %s", e.getMessage());
             }
         }
     }
@@ -113,16 +226,145 @@ public class ServeurSecondaire
         String fileName = dataInputStream.readUTF();
         long fileSize = dataInputStream.readLong();
 
+        // Écrit sous un nom temporaire puis publié une fois complet et sur disque
         File file = new File(directoryPath, "received_" + fileName);
-        try (FileOutputStream fileOutputStream = new FileOutputStream(file)) {
-            byte[] buffer = new byte[1024];
-            int bytesRead;
-            while ((bytesRead = dataInputStream.read(buffer)) != -1) {
-                fileOutputStream.write(buffer, 0, bytesRead);
+        File temporary = GroupCommit.temporaryFile(file);
+        try {
+            long totalRead;
+            try (FileOutputStream fileOutputStream = new FileOutputStream(temporary)) {
+                totalRead = Transfers.copyBytes(dataInputStream, fileOutputStream, -1, new byte[bufferSize], null);
+            }
+            if (totalRead < fileSize) {
+                log.error("Fichier %s incomplet : %s octets sur %s.", fileName, totalRead, fileSize);
+                return;
+            }
+            groupCommit.publish(temporary, file);
+        } finally {
+            temporary.delete(); // Sans effet une fois publié
+        }
+
+        log.sample("Fichier %s reçu avec succès.", fileName);
+    }
+
+    // Méthode pour recevoir une partie sous son nom exact (commande PUTPART)
+    // Lit exactement la taille annoncée puis répond "OK" ou un message d'erreur.
+    private static void receivePart(DataInputStream dataInputStream, DataOutputStream dataOutputStream) throws IOException
+    {
+        String partName = dataInputStream.readUTF();
+        long partSize = dataInputStream.readLong();
+
+        if (partSize < 0) {
+            log.error("Partie %s refusée : taille invalide (%s).", partName, partSize);
+            dataOutputStream.writeUTF("Erreur : Taille invalide (" + partSize + ")");
+            dataOutputStream.flush();
+            return;
+        }
+        if (partSize <= smallPartMaxSize) {
+            receiveSmallPart(new File(partName).getName(), partSize, dataInputStream, dataOutputStream);
+            return;
+        }
+
+        // Écrite sous un nom temporaire, publiée une fois complète et sur disque, avant la
+        // réponse : "OK" garantit que la partie survivra à un arrêt brutal
+        File file = new File(directoryPath, new File(partName).getName());
+        File temporary = GroupCommit.temporaryFile(file);
+        long totalRead;
+        try {
+            try (FileOutputStream fileOutputStream = new FileOutputStream(temporary)) {
+                totalRead = Transfers.copyBytes(dataInputStream, fileOutputStream, partSize, new byte[bufferSize], null);
+            }
+
+            if (totalRead < partSize) {
+                log.error("Partie %s incomplète : %s octets sur %s.", partName, totalRead, partSize);
+                return; // La connexion est déjà fermée, inutile de répondre
+            }
+            // Les lectures cherchent d'abord dans les segments : une ancienne version plus
+            // petite doit disparaître avant la publication, sinon elle serait encore servie
+            segmentStore.delete(file.getName());
+            groupCommit.publish(temporary, file);
+        } finally {
+            temporary.delete(); // Sans effet une fois publiée
+        }
+        fileParts.add(file.getName());
+
+        dataOutputStream.writeUTF("OK");
+        dataOutputStream.flush();
+        log.sample("Partie %s reçue avec succès (%s octets).", partName, totalRead);
+    }
+
+    // Petite partie : reçue en mémoire puis ajoutée au segment ouvert
+    private static void receiveSmallPart(String partName, long partSize, DataInputStream dataInputStream, DataOutputStream dataOutputStream) throws IOException
+    {
+        byte[] data = new byte[(int) partSize];
+        int totalRead = 0;
+        while (totalRead < data.length) {
+            int bytesRead = dataInputStream.read(data, totalRead, data.length - totalRead);
+            if (bytesRead == -1) {
+                log.error("Partie %s incomplète : %s octets sur %s.", partName, totalRead, partSize);
+                return; // La connexion est déjà fermée, inutile de répondre
             }
+            totalRead += bytesRead;
         }
 
-        System.out.println("Fichier " + fileName + " reçu avec succès.");
+        segmentStore.put(partName, data);
+        new File(directoryPath, partName).delete(); // Ancienne version plus grande
+        fileParts.remove(partName);
+
+        dataOutputStream.writeUTF("OK");
+        dataOutputStream.flush();
+        log.sample("Partie %s reçue avec succès (%s octets).", partName, totalRead);
+    }
+
+    // Méthode pour supprimer une partie sous son nom exact (commande RMPART)
+    // Répond "OK" ou "NOT_FOUND".
+    private static void handleRemovePart(DataInputStream inputStream, DataOutputStream outputStream) throws IOException
+    {
+        String partName = new File(inputStream.readUTF()).getName();
+        boolean removed = segmentStore.delete(partName);
+        removed |= new File(directoryPath, partName).delete();
+        fileParts.remove(partName);
+        outputStream.writeUTF(removed ? "OK" : "NOT_FOUND");
+        outputStream.flush();
+        log.sample("Suppression de la partie %s : %s", partName, removed ? "OK" : "NOT_FOUND");
+    }
+
+    // Méthode pour consulter la taille d'une partie (commande STAT), -1 si absente
+    private static void handleStat(DataInputStream inputStream, DataOutputStream outputStream) throws IOException
+    {
+        String partName = new File(inputStream.readUTF()).getName();
+        long storedSize = segmentStore.length(partName);
+        if (storedSize == -1) {
+            File filePart = new File(directoryPath, partName);
+            storedSize = filePart.isFile() ? filePart.length() : -1;
+        }
+        outputStream.writeLong(storedSize);
+        outputStream.flush();
+    }
+
+    // Méthode pour calculer le CRC32 d'une partie (commande CHECKSUM), -1 si absente
+    private static void handleChecksum(DataInputStream inputStream, DataOutputStream outputStream) throws IOException
+    {
+        String partName = new File(inputStream.readUTF()).getName();
+        CRC32 checksum = new CRC32();
+        byte[] data = segmentStore.read(partName);
+        if (data != null) {
+            checksum.update(data);
+            outputStream.writeLong(checksum.getValue());
+            outputStream.flush();
+            return;
+        }
+
+        File filePart = new File(directoryPath, partName);
+        if (!filePart.isFile()) {
+            outputStream.writeLong(-1);
+            return;
+        }
+
+        try (FileInputStream fileInputStream = new FileInputStream(filePart)) {
+            Transfers.copyBytes(fileInputStream, OutputStream.nullOutputStream(), -1, new byte[bufferSize], checksum);
+        }
+        outputStream.writeLong(checksum.getValue());
+        outputStream.flush();
     }
 
     // Méthode pour envoyer une partie de fichier (commande GET)
@@ -131,60 +373,72 @@ public class ServeurSecondaire
         try {
             // Recevoir la demande (nom du fichier demandé)
             String requestedFileName = inputStream.readUTF();
-            System.out.println("Demande reçue pour le fichier : " + requestedFileName);
+            log.sample("Demande reçue pour le fichier : %s", requestedFileName);
+
+            // Petite partie rangée dans un segment
+            byte[] data = segmentStore.read(new File(requestedFileName).getName());
+            if (data != null) {
+                outputStream.writeLong(data.length);
+                outputStream.write(data);
+                outputStream.flush();
+                log.sample("Partie %s envoyée depuis un segment.", requestedFileName);
+                return;
+            }
 
             // Vérifier si le fichier existe dans le répertoire spécifié
             File filePart = new File(directoryPath, requestedFileName);
-            System.out.println("Chemin complet du fichier : " + filePart.getAbsolutePath());
+            log.sample("Chemin complet du fichier : %s", filePart.getAbsolutePath());
 
             if (!filePart.exists() || !filePart.isFile()) {
-                System.err.println("Erreur : le fichier " + filePart.getName() + " n'existe pas ou est invalide.");
+                log.error("Erreur : le fichier %s n'existe pas ou est invalide.", filePart.getName());
                 outputStream.writeLong(-1); // Taille invalide pour signaler une erreur
                 return;
             }
 
             // Envoyer la taille du fichier
             long fileSize = filePart.length();
-            System.out.println("Envoi de la taille du fichier : " + fileSize);
+            log.sample("Envoi de la taille du fichier : %s", fileSize);
             outputStream.writeLong(fileSize);
 
             // Envoyer le contenu du fichier
             try (FileInputStream fileInputStream = new FileInputStream(filePart)) {
-                byte[] buffer = new byte[1024];
-                int bytesRead;
-                while ((bytesRead = fileInputStream.read(buffer)) != -1) {
-                    outputStream.write(buffer, 0, bytesRead);
-                }
+                Transfers.copyBytes(fileInputStream, outputStream, -1, new byte[bufferSize], null);
             }
 
-            System.out.println("Fichier " + filePart.getName() + " envoyé avec succès.");
+            log.sample("Fichier %s envoyé avec succès.", filePart.getName());
         } catch (IOException e) {
-            System.err.println("Erreur lors de l'envoi de la partie : " + e.getMessage());
+            log.error("Erreur lors de l'envoi de la partie : %s", e.getMessage());
         }
     }
 
     private static void handleListFiles(DataInputStream inputStream, DataOutputStream outputStream) throws IOException 
     {
         File directory = new File(directoryPath); // Répertoire spécifié dans le fichier de configuration
-        File[] files = directory.listFiles();
+        File[] files = directory.listFiles(File::isFile); // Sans le répertoire des segments
 
         if (files == null) {
             outputStream.writeInt(0); // Aucun fichier trouvé
-            System.out.println("Aucun fichier trouvé.");
+            log.sample("Aucun fichier trouvé.");
             return;
         }
 
+        // Fichiers du répertoire et petites parties rangées dans les segments
+        Set<String> fileNames = segmentStore.names();
+        for (File file : files) {
+            if (!GroupCommit.isTemporary(file.getName())) { // Envois en cours
+                fileNames.add(file.getName());
+            }
+        }
+
         // Envoyer le nombre de fichiers
-        outputStream.writeInt(files.length);
+        outputStream.writeInt(fileNames.size());
 
-        for (File file : files) 
+        for (String fileName : fileNames) 
         {
-            if (file.isFile()) {
-                outputStream.writeUTF(file.getName());
-            }
+            outputStream.writeUTF(fileName);
         }
 
-        System.out.println("Liste des fichiers envoyée.");
+        log.sample("Liste des fichiers envoyée.");
     }
 
     // private static void handleRemoveFile(DataInputStream inputStream, DataOutputStream outputStream) throws IOException 
@@ -217,7 +471,7 @@ public class ServeurSecondaire
         if (principalFile.exists() && principalFile.isFile()) 
         {
             if (principalFile.delete()) {
-                System.out.println("Fichier principal supprimé : " + fileName1);
+                log.sample("Fichier principal supprimé : %s", fileName1);
                 deletionSuccess = true;
             } else {
                 outputStream.writeUTF("Erreur : Impossible de supprimer le fichier principal : " + fileName1);
@@ -225,34 +479,29 @@ public class ServeurSecondaire
             }
         } 
 
-        // Étape 2 : Supprimer les fichiers partiels associés dans plusieurs répertoires
+        // Étape 2 : Supprimer les parties du fichier rangées sur ce serveur, retrouvées par
+        // leur nom dans les index (fichiers du répertoire et petites parties des segments)
+        // plutôt qu'en listant le répertoire ; chaque serveur secondaire reçoit le RM
         boolean foundParts = false;
 
-        for (String dirPath : secondaryServerDirectories) 
+        for (String partName : fileParts.partsOf(fileName))
         {
-            File directory = new File(dirPath);
-            if (!directory.exists() || !directory.isDirectory()) {
-                System.err.println("Erreur : Répertoire introuvable ou inaccessible : " + dirPath);
-                continue;
-            }
-
-            File[] files = directory.listFiles();
-            if (files == null) {
-                System.err.println("Erreur : Impossible de lister les fichiers dans le répertoire : " + dirPath);
+            File file = new File(directoryPath, partName);
+            if (file.delete()) {
+                foundParts = true;
+                outputStream.writeUTF("Les parties du fichier '" + fileName + "' ont ete supprimees");
+            } else if (file.exists()) {
+                log.error("Erreur : Impossible de supprimer le fichier partiel dans %s : %s", directoryPath, partName);
                 continue;
             }
+            fileParts.remove(partName);
+        }
 
-            for (File file : files) 
-            {
-                if (file.getName().startsWith("part_") && file.getName().endsWith("_received_" + fileName)) {
-                    foundParts = true;
-                    if (file.delete()) {
-                        // System.out.println("Fichier partiel supprimé dans " + dirPath + " : " + file.getName());
-                        outputStream.writeUTF("Les parties du fichier '" + fileName + "' ont ete supprimees");
-                    } else {
-                        System.err.println("Erreur : Impossible de supprimer le fichier partiel dans " + dirPath + " : " + file.getName());
-                    }
-                }
+        for (String partName : segmentStore.partsOf(fileName))
+        {
+            if (segmentStore.delete(partName)) {
+                foundParts = true;
+                outputStream.writeUTF("Les parties du fichier '" + fileName + "' ont ete supprimees");
             }
         }
 
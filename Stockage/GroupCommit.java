@@ -0,0 +1,258 @@
+package Stockage;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Écritures durables sans un fsync par fichier. Les fichiers reçus sont écrits sous un
+// nom temporaire (TEMP_PREFIX) dans leur répertoire définitif, puis publiés par un
+// renommage atomique : un lecteur voit l'ancien fichier ou le nouveau complet, jamais un
+// fichier à moitié écrit, et un arrêt brutal ne laisse que des fichiers temporaires,
+// supprimés au démarrage (removeTemporaryFiles).
+//
+// Les demandes de synchronisation (contenu d'un fichier, canal ouvert, répertoire après
+// un renommage) sont déposées dans une file ; un thread unique attend au plus maxDelay
+// millisecondes pour regrouper jusqu'à maxBatch demandes, puis synchronise une seule fois
+// chaque fichier, canal ou répertoire du lot. Les synchronisations d'un lot sont lancées
+// en parallèle (SYNC_THREADS au plus) pour que le disque les traite ensemble, et tous les
+// demandeurs sont libérés à la fin du lot : les envois simultanés partagent la
+// synchronisation du répertoire et le journal du système de fichiers au lieu d'attendre
+// chacun leurs fsync. Avec enabled=false, seuls le renommage atomique et l'ordre sont
+// conservés.
+public class GroupCommit
+{
+    public static final String TEMP_PREFIX = ".tmp-";
+
+    private static final int SYNC_THREADS = 16;
+
+    private static final AtomicLong temporaryCounter = new AtomicLong();
+
+    // Une demande : un canal ouvert, ou un chemin (fichier ou répertoire)
+    private static class Request
+    {
+        final FileChannel channel;
+        final Path path;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Request(FileChannel channel, Path path)
+        {
+            this.channel = channel;
+            this.path = path;
+        }
+
+        Object key()
+        {
+            return channel != null ? channel : path;
+        }
+    }
+
+    private final BlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+    private final long maxDelayNanos;
+    private final int maxBatch;
+    private final boolean enabled;
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder syncs = new LongAdder();
+    private ExecutorService syncers;
+
+    public GroupCommit(String name, long maxDelayMillis, int maxBatch, boolean enabled)
+    {
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, maxDelayMillis));
+        this.maxBatch = Math.max(1, maxBatch);
+        this.enabled = enabled;
+
+        if (enabled) {
+            AtomicLong syncerCount = new AtomicLong();
+            syncers = Executors.newFixedThreadPool(SYNC_THREADS, runnable -> {
+                Thread thread = new Thread(runnable, name + "-" + syncerCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            Thread committer = new Thread(this::run, name);
+            committer.setDaemon(true);
+            committer.start();
+        }
+    }
+
+    // Nom temporaire pour écrire target avant de le publier
+    public static File temporaryFile(File target)
+    {
+        return new File(target.getParentFile(), TEMP_PREFIX + target.getName() + "." + temporaryCounter.incrementAndGet());
+    }
+
+    public static boolean isTemporary(String fileName)
+    {
+        return fileName.startsWith(TEMP_PREFIX);
+    }
+
+    // Supprime les fichiers temporaires laissés par un arrêt brutal ; retourne leur nombre
+    public static int removeTemporaryFiles(File directory)
+    {
+        File[] files = directory.listFiles((dir, name) -> isTemporary(name));
+        int removed = 0;
+        if (files != null) {
+            for (File file : files) {
+                if (file.delete()) {
+                    removed++;
+                }
+            }
+        }
+        return removed;
+    }
+
+    // Renommage atomique de temporary en target (remplacé s'il existe)
+    public static void move(File temporary, File target) throws IOException
+    {
+        try {
+            Files.move(temporary.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temporary.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    // Rend durable le contenu de temporary, le publie sous target et rend le renommage durable
+    public void publish(File temporary, File target) throws IOException
+    {
+        force(temporary);
+        move(temporary, target);
+        force(target.getAbsoluteFile().getParentFile());
+    }
+
+    // Attend que le contenu du fichier (ou la liste d'un répertoire) soit sur disque
+    public void force(File file) throws IOException
+    {
+        await(new Request(null, file.getAbsoluteFile().toPath()));
+    }
+
+    // Attend que les écritures déjà faites sur ce canal soient sur disque
+    public void force(FileChannel channel) throws IOException
+    {
+        await(new Request(channel, null));
+    }
+
+    public long batches()
+    {
+        return batches.sum();
+    }
+
+    public long requests()
+    {
+        return requests.sum();
+    }
+
+    public long syncs()
+    {
+        return syncs.sum();
+    }
+
+    public int pending()
+    {
+        return queue.size();
+    }
+
+    private void await(Request request) throws IOException
+    {
+        if (!enabled) {
+            return;
+        }
+        requests.increment();
+        queue.add(request);
+        try {
+            request.done.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("attente de la synchronisation interrompue");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        }
+    }
+
+    private void run()
+    {
+        List<Request> batch = new ArrayList<>();
+        while (true)
+        {
+            try {
+                batch.add(queue.take());
+                long deadline = System.nanoTime() + maxDelayNanos;
+                while (batch.size() < maxBatch) {
+                    long remaining = deadline - System.nanoTime();
+                    Request next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            commit(batch);
+            batch.clear();
+        }
+    }
+
+    // Une synchronisation par fichier, canal ou répertoire distinct du lot, en parallèle
+    private void commit(List<Request> batch)
+    {
+        batches.increment();
+        Map<Object, Future<IOException>> results = new HashMap<>();
+        for (Request request : batch) {
+            if (!results.containsKey(request.key())) {
+                results.put(request.key(), syncers.submit(() -> sync(request)));
+            }
+        }
+
+        for (Request request : batch) {
+            IOException failure;
+            try {
+                failure = results.get(request.key()).get();
+            } catch (InterruptedException | ExecutionException e) {
+                failure = new IOException(e);
+            }
+            if (failure == null) {
+                request.done.complete(null);
+            } else {
+                request.done.completeExceptionally(failure);
+            }
+        }
+    }
+
+    // Retourne l'erreur de la synchronisation, null si elle a réussi
+    private IOException sync(Request request)
+    {
+        try {
+            if (request.channel != null) {
+                request.channel.force(false);
+            } else if (Files.isDirectory(request.path)) {
+                forceDirectory(request.path);
+            } else {
+                try (FileChannel channel = FileChannel.open(request.path, StandardOpenOption.WRITE)) {
+                    channel.force(true);
+                }
+            }
+            syncs.increment();
+            return null;
+        } catch (IOException e) {
+            return e;
+        } catch (RuntimeException e) {
+            return new IOException(e); // Le thread doit survivre pour les lots suivants
+        }
+    }
+
+    // Certains systèmes (Windows) ne permettent pas d'ouvrir un répertoire : le renommage
+    // y reste atomique mais sa durabilité dépend du système de fichiers
+    private static void forceDirectory(Path directory)
+    {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Ignoré, voir ci-dessus
+        }
+    }
+}
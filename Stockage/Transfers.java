@@ -0,0 +1,33 @@
+package Stockage;
+
+import java.io.*;
+import java.util.zip.Checksum;
+
+// Boucle de copie commune aux transferts des serveurs principal et secondaires
+// (réception des PUT et des parties, envoi des parties, lecture pour GET et CRC).
+public class Transfers
+{
+    private Transfers()
+    {
+    }
+
+    // Copie length octets (ou jusqu'à la fin du flux si length < 0) avec le tampon donné,
+    // en mettant à jour checksum s'il n'est pas null. Retourne le nombre d'octets copiés,
+    // inférieur à length si le flux se termine avant.
+    public static long copyBytes(InputStream input, OutputStream output, long length, byte[] buffer, Checksum checksum) throws IOException
+    {
+        long total = 0;
+        while (length < 0 || total < length)
+        {
+            int toRead = length < 0 ? buffer.length : (int) Math.min(buffer.length, length - total);
+            int bytesRead = input.read(buffer, 0, toRead);
+            if (bytesRead == -1) break;
+            output.write(buffer, 0, bytesRead);
+            if (checksum != null) {
+                checksum.update(buffer, 0, bytesRead);
+            }
+            total += bytesRead;
+        }
+        return total;
+    }
+}
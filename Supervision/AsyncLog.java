@@ -0,0 +1,99 @@
+package Supervision;
+
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Journal asynchrone : les threads de transfert déposent le message et ses arguments
+// dans une file bornée, un thread dédié fait le formatage et l'écriture sur la console.
+// Si la file est pleine, le message est abandonné (et compté) plutôt que de bloquer
+// un transfert. Les messages répétés à chaque requête passent par sample(), qui n'en
+// garde qu'un sur sampleEvery pour chaque format.
+public class AsyncLog
+{
+    private static class Entry
+    {
+        final PrintStream stream;
+        final String format;
+        final Object[] args;
+
+        Entry(PrintStream stream, String format, Object[] args)
+        {
+            this.stream = stream;
+            this.format = format;
+            this.args = args;
+        }
+    }
+
+    private final BlockingQueue<Entry> queue;
+    private final int sampleEvery;
+    private final Map<String, AtomicLong> occurrences = new ConcurrentHashMap<>();
+    private final LongAdder dropped = new LongAdder();
+
+    public AsyncLog(String name, int queueSize, int sampleEvery)
+    {
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, queueSize));
+        this.sampleEvery = Math.max(1, sampleEvery);
+
+        Thread writer = new Thread(this::drain, name);
+        writer.setDaemon(true);
+        writer.setPriority(Thread.MIN_PRIORITY);
+        writer.start();
+    }
+
+    // Message toujours écrit (sauf file pleine)
+    public void info(String format, Object... args)
+    {
+        enqueue(System.out, format, args);
+    }
+
+    // Erreur toujours écrite sur la sortie d'erreur (sauf file pleine)
+    public void error(String format, Object... args)
+    {
+        enqueue(System.err, format, args);
+    }
+
+    // Message de requête : le premier puis un sur sampleEvery pour ce format
+    public void sample(String format, Object... args)
+    {
+        if (sampleEvery == 1 || occurrences.computeIfAbsent(format, key -> new AtomicLong()).getAndIncrement() % sampleEvery == 0) {
+            enqueue(System.out, format, args);
+        }
+    }
+
+    public int pending()
+    {
+        return queue.size();
+    }
+
+    public long dropped()
+    {
+        return dropped.sum();
+    }
+
+    private void enqueue(PrintStream stream, String format, Object[] args)
+    {
+        if (!queue.offer(new Entry(stream, format, args))) {
+            dropped.increment();
+        }
+    }
+
+    private void drain()
+    {
+        while (true)
+        {
+            try {
+                Entry entry = queue.take();
+                entry.stream.println(entry.args.length == 0 ? entry.format : String.format(entry.format, entry.args));
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                System.err.println("Erreur du journal : " + e.getMessage());
+            }
+        }
+    }
+}
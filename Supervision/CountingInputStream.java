@@ -0,0 +1,50 @@
+package Supervision;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+// Flux d'entrée qui compte les octets lus, pour les mesures d'une connexion.
+// Une instance n'est utilisée que par le thread qui traite la connexion.
+public class CountingInputStream extends FilterInputStream
+{
+    private long count;
+
+    public CountingInputStream(InputStream input)
+    {
+        super(input);
+    }
+
+    public long count()
+    {
+        return count;
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        int value = in.read();
+        if (value != -1) {
+            count++;
+        }
+        return value;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException
+    {
+        int bytesRead = in.read(buffer, offset, length);
+        if (bytesRead > 0) {
+            count += bytesRead;
+        }
+        return bytesRead;
+    }
+
+    @Override
+    public long skip(long length) throws IOException
+    {
+        long skipped = in.skip(length);
+        count += skipped;
+        return skipped;
+    }
+}
@@ -0,0 +1,37 @@
+package Supervision;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+// Flux de sortie qui compte les octets écrits, pour les mesures d'une connexion.
+// write(byte[], int, int) est redéfinie pour ne pas écrire octet par octet comme
+// FilterOutputStream.
+public class CountingOutputStream extends FilterOutputStream
+{
+    private long count;
+
+    public CountingOutputStream(OutputStream output)
+    {
+        super(output);
+    }
+
+    public long count()
+    {
+        return count;
+    }
+
+    @Override
+    public void write(int value) throws IOException
+    {
+        out.write(value);
+        count++;
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException
+    {
+        out.write(buffer, offset, length);
+        count += length;
+    }
+}
@@ -0,0 +1,102 @@
+package Supervision;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Histogramme de latences à la manière de HdrHistogram : valeurs en microsecondes,
+// rangées dans des intervalles log-linéaires de 1 µs à plusieurs jours. Les valeurs
+// jusqu'à 127 µs sont exactes ; au-delà, chaque puissance de deux est découpée en 64
+// sous-intervalles, soit au plus 1/64 (environ 1,6 %) d'erreur relative sur un centile.
+// L'enregistrement ne prend aucun verrou, il peut se faire depuis n'importe quel thread
+// de transfert.
+public class LatencyHistogram
+{
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;        // 128
+    private static final int HALF_SUB_BUCKET_COUNT = SUB_BUCKET_COUNT / 2;   // 64
+    private static final int BUCKET_COUNT = 64 - SUB_BUCKET_BITS + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(SUB_BUCKET_COUNT + (BUCKET_COUNT - 1) * HALF_SUB_BUCKET_COUNT);
+    private final LongAdder totalCount = new LongAdder();
+    private final LongAdder totalMicros = new LongAdder();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    public void recordNanos(long nanos)
+    {
+        record(TimeUnit.NANOSECONDS.toMicros(Math.max(0, nanos)));
+    }
+
+    public void record(long micros)
+    {
+        long value = Math.max(0, micros);
+        counts.incrementAndGet(indexOf(value));
+        totalCount.increment();
+        totalMicros.add(value);
+        maxMicros.accumulateAndGet(value, Math::max);
+    }
+
+    // Les valeurs inférieures à 128 ont chacune leur intervalle ; au-delà, chaque
+    // puissance de deux est découpée en 64 intervalles de même largeur.
+    private static int indexOf(long value)
+    {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift);                  // 64..127
+        return SUB_BUCKET_COUNT + (shift - 1) * HALF_SUB_BUCKET_COUNT + (subBucket - HALF_SUB_BUCKET_COUNT);
+    }
+
+    // Plus grande valeur rangée dans l'intervalle index
+    private static long highestValueAt(int index)
+    {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKET_COUNT) / HALF_SUB_BUCKET_COUNT + 1;
+        long subBucket = (index - SUB_BUCKET_COUNT) % HALF_SUB_BUCKET_COUNT + HALF_SUB_BUCKET_COUNT;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    public long count()
+    {
+        return totalCount.sum();
+    }
+
+    public long max()
+    {
+        return maxMicros.get();
+    }
+
+    public double mean()
+    {
+        long count = totalCount.sum();
+        return count == 0 ? 0 : (double) totalMicros.sum() / count;
+    }
+
+    // Valeur (µs) en dessous de laquelle se trouve la fraction quantile des mesures,
+    // 0 si l'histogramme est vide
+    public long percentile(double quantile)
+    {
+        long count = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            count += counts.get(i);
+        }
+        if (count == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(quantile * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++)
+        {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestValueAt(i), maxMicros.get());
+            }
+        }
+        return maxMicros.get();
+    }
+}
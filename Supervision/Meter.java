@@ -0,0 +1,58 @@
+package Supervision;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Compteur d'octets (ou d'événements) avec son débit : total depuis le démarrage et
+// moyenne glissante exponentielle sur une minute, recalculée toutes les 5 secondes
+// par le premier thread qui passe, sans thread dédié.
+public class Meter
+{
+    private static final long TICK_INTERVAL = TimeUnit.SECONDS.toNanos(5);
+    private static final double ALPHA = 1 - Math.exp(-5.0 / 60.0);
+
+    private final LongAdder total = new LongAdder();
+    private final LongAdder uncounted = new LongAdder();
+    private final AtomicLong lastTick = new AtomicLong(System.nanoTime());
+    private volatile double rate;          // par seconde
+    private volatile boolean initialized;
+
+    public void mark(long amount)
+    {
+        tickIfNecessary();
+        total.add(amount);
+        uncounted.add(amount);
+    }
+
+    public long total()
+    {
+        return total.sum();
+    }
+
+    // Débit moyen sur la dernière minute, par seconde
+    public double rate()
+    {
+        tickIfNecessary();
+        return rate;
+    }
+
+    private void tickIfNecessary()
+    {
+        long previous = lastTick.get();
+        long now = System.nanoTime();
+        long ticks = (now - previous) / TICK_INTERVAL;
+        if (ticks <= 0 || !lastTick.compareAndSet(previous, previous + ticks * TICK_INTERVAL)) {
+            return;
+        }
+
+        double instantRate = uncounted.sumThenReset() / (double) TimeUnit.NANOSECONDS.toSeconds(TICK_INTERVAL);
+        double current = initialized ? rate + ALPHA * (instantRate - rate) : instantRate;
+        initialized = true;
+        // Intervalles sans activité : le débit décroît
+        for (long i = 1; i < ticks; i++) {
+            current -= ALPHA * current;
+        }
+        rate = current;
+    }
+}
@@ -0,0 +1,118 @@
+package Supervision;
+
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+// Registre des mesures d'un serveur : compteurs, débits (Meter), histogrammes de
+// latence et jauges lues au moment de la consultation. Les noms suivent la forme
+// nom{étiquette="valeur",...} pour que la sortie de describe() puisse être relevée
+// telle quelle par un outil de collecte au format texte de Prometheus.
+public class Metrics
+{
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final Map<String, Meter> meters = new ConcurrentHashMap<>();
+    private final Map<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+    private final long startTime = System.currentTimeMillis();
+
+    public Metrics()
+    {
+        gauge("threads_live", () -> ManagementFactory.getThreadMXBean().getThreadCount());
+        gauge("uptime_seconds", () -> (System.currentTimeMillis() - startTime) / 1000);
+    }
+
+    // Nom complet à partir du nom de base et de paires étiquette, valeur
+    public static String name(String base, Object... labels)
+    {
+        if (labels.length == 0) {
+            return base;
+        }
+        StringBuilder name = new StringBuilder(base).append('{');
+        for (int i = 0; i + 1 < labels.length; i += 2) {
+            if (i > 0) {
+                name.append(',');
+            }
+            name.append(labels[i]).append("=\"").append(labels[i + 1]).append('"');
+        }
+        return name.append('}').toString();
+    }
+
+    public LongAdder counter(String name)
+    {
+        return counters.computeIfAbsent(name, key -> new LongAdder());
+    }
+
+    public Meter meter(String name)
+    {
+        return meters.computeIfAbsent(name, key -> new Meter());
+    }
+
+    public LatencyHistogram histogram(String name)
+    {
+        return histograms.computeIfAbsent(name, key -> new LatencyHistogram());
+    }
+
+    public void gauge(String name, LongSupplier value)
+    {
+        gauges.put(name, value);
+    }
+
+    // Une commande traitée : nombre, erreurs, latence et octets échangés
+    public void recordCommand(String command, long startNanos, long bytesIn, long bytesOut, boolean failed)
+    {
+        counter(name("commands_total", "command", command)).increment();
+        if (failed) {
+            counter(name("command_errors_total", "command", command)).increment();
+        }
+        histogram(name("command_latency_us", "command", command)).recordNanos(System.nanoTime() - startNanos);
+        if (bytesIn > 0) {
+            meter(name("command_bytes_in", "command", command)).mark(bytesIn);
+        }
+        if (bytesOut > 0) {
+            meter(name("command_bytes_out", "command", command)).mark(bytesOut);
+        }
+    }
+
+    // Toutes les mesures, une par ligne, triées par nom
+    public List<String> describe()
+    {
+        List<String> lines = new ArrayList<>();
+        for (Map.Entry<String, LongSupplier> gauge : new TreeMap<>(gauges).entrySet()) {
+            lines.add(gauge.getKey() + " " + gauge.getValue().getAsLong());
+        }
+        for (Map.Entry<String, LongAdder> counter : new TreeMap<>(counters).entrySet()) {
+            lines.add(counter.getKey() + " " + counter.getValue().sum());
+        }
+        for (Map.Entry<String, Meter> meter : new TreeMap<>(meters).entrySet()) {
+            lines.add(suffixed(meter.getKey(), "_total", null) + " " + meter.getValue().total());
+            lines.add(suffixed(meter.getKey(), "_rate1m", null) + " " + String.format(Locale.ROOT, "%.1f", meter.getValue().rate()));
+        }
+        for (Map.Entry<String, LatencyHistogram> histogram : new TreeMap<>(histograms).entrySet())
+        {
+            LatencyHistogram values = histogram.getValue();
+            lines.add(suffixed(histogram.getKey(), "_count", null) + " " + values.count());
+            for (double quantile : QUANTILES) {
+                lines.add(suffixed(histogram.getKey(), "", "quantile=\"" + quantile + "\"") + " " + values.percentile(quantile));
+            }
+            lines.add(suffixed(histogram.getKey(), "_max", null) + " " + values.max());
+        }
+        return lines;
+    }
+
+    // Ajoute un suffixe au nom de base et éventuellement une étiquette : a{b="c"} -> a_count{b="c"}
+    private static String suffixed(String name, String suffix, String extraLabel)
+    {
+        int brace = name.indexOf('{');
+        String base = brace < 0 ? name : name.substring(0, brace);
+        String labels = brace < 0 ? "" : name.substring(brace + 1, name.length() - 1);
+        if (extraLabel != null) {
+            labels = labels.isEmpty() ? extraLabel : labels + "," + extraLabel;
+        }
+        return base + suffix + (labels.isEmpty() ? "" : "{" + labels + "}");
+    }
+}